@@ -276,6 +276,11 @@ public class Constants {
     public static final String JSP_RESOURCE_INJECTOR_CONTEXT_ATTRIBUTE =
         "com.sun.appserv.jsp.resource.injector";
 
+    // a context attribute holding the JspApplicationContextImpl of the
+    // application
+    public static final String JSP_APPLICATION_CONTEXT_ATTRIBUTE =
+        "org.glassfish.jsp.applicationContext";
+
     // a request attribute to indicate that the jsp error is already handled
     // The constant value (instead of the constant name) is being referenced from
     // other modules, and therefore requires special caution whenever it is changed.
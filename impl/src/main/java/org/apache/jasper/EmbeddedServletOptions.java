@@ -143,6 +143,16 @@ public final class EmbeddedServletOptions implements Options {
      */
     private int checkInterval = 0;
 
+    /**
+     * Should the background compile thread watch for file changes?
+     */
+    private boolean watchChanges = false;
+
+    /**
+     * Number of threads used to recompile JSP files in the background.
+     */
+    private int backgroundCompileThreads = 1;
+
     /**
      * Is the generation of SMAP info for JSR45 debuggin suppressed?
      */
@@ -160,6 +170,22 @@ public final class EmbeddedServletOptions implements Options {
 
     private boolean genStringAsByteArray = true;
 
+    /**
+     * Should jsp:setProperty call the setters of useBean beans directly?
+     */
+    private boolean genDirectBeanAccess = true;
+
+    /**
+     * Should simple EL expressions be translated to Java?
+     */
+    private boolean genELAsJava = false;
+
+    /**
+     * Size of the helper methods that _jspService is split into, in lines
+     * of Java code, or 0 if _jspService is not split.
+     */
+    private int serviceMethodSplitSize = 0;
+
     private boolean defaultBufferNone = false;
 
     private boolean errorOnUseBeanInvalidClassAttribute = false;
@@ -313,6 +339,20 @@ public final class EmbeddedServletOptions implements Options {
         return checkInterval;
     }
 
+    /**
+     * Should the background compile thread watch for file changes?
+     */
+    public boolean getWatchChanges() {
+        return watchChanges;
+    }
+
+    /**
+     * Number of threads used to recompile JSP files in the background.
+     */
+    public int getBackgroundCompileThreads() {
+        return backgroundCompileThreads;
+    }
+
     /**
      * Modification test interval.
      */
@@ -352,6 +392,18 @@ public final class EmbeddedServletOptions implements Options {
         return this.genStringAsByteArray;
     }
 
+    public boolean genDirectBeanAccess() {
+        return this.genDirectBeanAccess;
+    }
+
+    public boolean genELAsJava() {
+        return this.genELAsJava;
+    }
+
+    public int getServiceMethodSplitSize() {
+        return this.serviceMethodSplitSize;
+    }
+
     public boolean isDefaultBufferNone() {
         return defaultBufferNone;
     }
@@ -530,10 +582,13 @@ public final class EmbeddedServletOptions implements Options {
         sendErrorToClient = getBoolean(config, sendErrorToClient, "sendErrToClient");
         classDebugInfo = getBoolean(config, classDebugInfo, "classdebuginfo");
         development = getBoolean(config, development, "development");
+        watchChanges = getBoolean(config, watchChanges, "watchChanges");
         isSmapSuppressed = getBoolean(config, isSmapSuppressed, "suppressSmap");
         isSmapDumped = getBoolean(config, isSmapDumped, "dumpSmap");
         genStringAsCharArray = getBoolean(config, genStringAsCharArray, "genStrAsCharArray");
         genStringAsByteArray = getBoolean(config, genStringAsByteArray, "genStrAsByteArray");
+        genDirectBeanAccess = getBoolean(config, genDirectBeanAccess, "genDirectBeanAccess");
+        genELAsJava = getBoolean(config, genELAsJava, "genELAsJava");
         defaultBufferNone = getBoolean(config, defaultBufferNone, "defaultBufferNone");
         errorOnUseBeanInvalidClassAttribute = getBoolean(config, errorOnUseBeanInvalidClassAttribute, "errorOnUseBeanInvalidClassAttribute");
         fork = getBoolean(config, fork, "fork");
@@ -544,6 +599,18 @@ public final class EmbeddedServletOptions implements Options {
             parseCheckInterval(checkIntervalStr);
         }
 
+        String backgroundCompileThreadsStr =
+            config.getInitParameter("backgroundCompileThreads");
+        if (backgroundCompileThreadsStr != null) {
+            parseBackgroundCompileThreads(backgroundCompileThreadsStr);
+        }
+
+        String serviceMethodSplitSizeStr =
+            config.getInitParameter("serviceMethodSplitSize");
+        if (serviceMethodSplitSizeStr != null) {
+            parseServiceMethodSplitSize(serviceMethodSplitSizeStr);
+        }
+
         String modificationTestIntervalStr =
             config.getInitParameter("modificationTestInterval");
         if (modificationTestIntervalStr != null) {
@@ -733,6 +800,30 @@ public final class EmbeddedServletOptions implements Options {
     }
 
 
+    private void parseBackgroundCompileThreads(String param) {
+        try {
+            this.backgroundCompileThreads = Integer.parseInt(param);
+        } catch(NumberFormatException ex) {
+            if (log.isLoggable(Level.WARNING)) {
+               log.warning(Localizer.getMessage(
+                   "jsp.warning.backgroundCompileThreads"));
+            }
+        }
+    }
+
+
+    private void parseServiceMethodSplitSize(String param) {
+        try {
+            this.serviceMethodSplitSize = Integer.parseInt(param);
+        } catch(NumberFormatException ex) {
+            if (log.isLoggable(Level.WARNING)) {
+               log.warning(Localizer.getMessage(
+                   "jsp.warning.serviceMethodSplitSize"));
+            }
+        }
+    }
+
+
     private void parseModificationTestInterval(String param) {
         try {
             this.modificationTestInterval = Integer.parseInt(param);
@@ -73,6 +73,11 @@ import java.io.UnsupportedEncodingException;
 // START GlassFish 750
 import java.util.concurrent.ConcurrentHashMap;
 // END GlassFish 750
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -198,6 +203,8 @@ public class JspC implements Options {
         = "-ignoreJspFragmentErrors";
     // END SJSAS 6393940
     private static final String SWITCH_DISABLE_POOLING = "-disablePooling";
+    private static final String SWITCH_THREADS = "-threads";
+    private static final String SWITCH_BATCH = "-batch";
 
     private static final String SHOW_SUCCESS ="-s";
     private static final String LIST_ERRORS = "-l";
@@ -223,6 +230,9 @@ public class JspC implements Options {
     private boolean trimSpaces = false;
     private boolean genStringAsCharArray = false;
     private boolean genStringAsByteArray = true;
+    private boolean genDirectBeanAccess = true;
+    private boolean genELAsJava = false;
+    private int serviceMethodSplitSize = 0;
     private boolean defaultBufferNone = false;
     private boolean xpoweredBy;
     private boolean mappedFile = false;
@@ -251,6 +261,18 @@ public class JspC implements Options {
      */
     private boolean failOnError = true;
 
+    /*
+     * Number of threads used to translate and compile the pages.
+     * Default is 1, which processes the pages one after the other.
+     */
+    private int threads = 1;
+
+    /*
+     * Number of pages whose generated Java sources are compiled together
+     * in a single Java compiler invocation.
+     */
+    private int batchSize = 1;
+
     private ArrayList<String> extensions;
     private ArrayList<String> pages = new ArrayList<String>();
     private boolean errorOnUseBeanInvalidClassAttribute = false;
@@ -295,8 +317,8 @@ public class JspC implements Options {
     // END SJSAS 6384538
 
     // START SJSAS 6329723
-    private HashMap<String,JasperException> jspErrors
-        = new HashMap<String,JasperException>();
+    private Map<String,JasperException> jspErrors
+        = new LinkedHashMap<String,JasperException>();
     // END SJSAS 6329723
 
     // START SJSAS 6403017
@@ -424,6 +446,20 @@ public class JspC implements Options {
             // END SJSAS 6393940
             } else if (tok.equals(SWITCH_DISABLE_POOLING)) {
                 setPoolingEnabled(false);
+            } else if (tok.equals(SWITCH_THREADS)) {
+                try {
+                    setThreads(Integer.parseInt(nextArg()));
+                } catch (NumberFormatException nfe) {
+                    throw new JasperException("Invalid value for " +
+                        SWITCH_THREADS + ".  Use -help for help.");
+                }
+            } else if (tok.equals(SWITCH_BATCH)) {
+                try {
+                    setBatchSize(Integer.parseInt(nextArg()));
+                } catch (NumberFormatException nfe) {
+                    throw new JasperException("Invalid value for " +
+                        SWITCH_BATCH + ".  Use -help for help.");
+                }
             } else {
                 if (tok.startsWith("-")) {
                     throw new JasperException("Unrecognized option: " + tok +
@@ -537,6 +573,20 @@ public class JspC implements Options {
         return 0;
     }
 
+    /**
+     * Background compilation is not used by jspc.
+     */
+    public boolean getWatchChanges() {
+        return false;
+    }
+
+    /**
+     * Background compilation is not used by jspc.
+     */
+    public int getBackgroundCompileThreads() {
+        return 1;
+    }
+
     /**
      * Modification test interval.
      */
@@ -614,6 +664,51 @@ public class JspC implements Options {
         return genStringAsByteArray;
     }
 
+    /**
+     * Determines whether jsp:setProperty calls the setters of beans
+     * declared with jsp:useBean directly, when the property can be
+     * resolved at compile time.
+     *
+     * @param genDirectBeanAccess true if the setters are to be called
+     * directly, false if they are to be found by reflection at runtime
+     */
+    public void setGenDirectBeanAccess(boolean genDirectBeanAccess) {
+        this.genDirectBeanAccess = genDirectBeanAccess;
+    }
+
+    public boolean genDirectBeanAccess() {
+        return genDirectBeanAccess;
+    }
+
+    /**
+     * Determines whether simple EL expressions are translated to Java code
+     * instead of being evaluated by the EL interpreter.
+     *
+     * @param genELAsJava true if simple EL expressions are to be translated
+     */
+    public void setGenELAsJava(boolean genELAsJava) {
+        this.genELAsJava = genELAsJava;
+    }
+
+    public boolean genELAsJava() {
+        return genELAsJava;
+    }
+
+    /**
+     * Sets the size of the helper methods that the generated _jspService
+     * methods are split into.
+     *
+     * @param serviceMethodSplitSize the approximate number of lines of Java
+     * code in each helper method, or 0 to keep _jspService in one method
+     */
+    public void setServiceMethodSplitSize(int serviceMethodSplitSize) {
+        this.serviceMethodSplitSize = serviceMethodSplitSize;
+    }
+
+    public int getServiceMethodSplitSize() {
+        return serviceMethodSplitSize;
+    }
+
     public boolean isDefaultBufferNone() {
         return defaultBufferNone;
     }
@@ -936,6 +1031,31 @@ public class JspC implements Options {
         return failOnError;
     }
 
+    /**
+     * Sets the number of threads used to translate and compile the pages.
+     * Values less than 2 process the pages serially.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of pages whose generated Java sources are compiled
+     * together with a single Java compiler invocation.  Values less
+     * than 2 compile each page on its own.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
     // START SJSAS 6393940
     public void setIgnoreJspFragmentErrors(boolean ignore) {
         ignoreJspFragmentErrors = ignore;
@@ -1131,78 +1251,152 @@ public class JspC implements Options {
 
     }
 
-    private void processFile(String file)
+    /**
+     * Translates, and if requested compiles, the given batch of pages.
+     * The Java sources of all the pages in the batch are generated first,
+     * and then compiled together with a single Java compiler invocation.
+     *
+     * @return The compilation contexts of the pages, in the order of the
+     * given files, with null entries for the pages that failed and whose
+     * errors were recorded rather than thrown
+     */
+    private List<JspCompilationContext> processBatch(List<String> files)
         throws JasperException
     {
-        ClassLoader originalClassLoader = null;
-        String jspUri=file.replace('\\','/');
+        int count = files.size();
+        JspCompilationContext[] contexts = new JspCompilationContext[count];
+        Compiler[] compilers = new Compiler[count];
+        boolean[] generated = new boolean[count];
+        ArrayList<Compiler> batch = new ArrayList<Compiler>(count);
+        ClassLoader originalClassLoader =
+            Thread.currentThread().getContextClassLoader();
 
         try {
-            // set up a scratch/output dir if none is provided
-            if (scratchDir == null) {
-                String temp = System.getProperty("java.io.tmpdir");
-                if (temp == null) {
-                    temp = "";
+            for (int i = 0; i < count; i++) {
+                try {
+                    contexts[i] = createCompilationContext(files.get(i));
+                    compilers[i] = contexts[i].createCompiler(true);
+
+                    // If compile is set, generate both .java and .class, if
+                    // .jsp file is newer than .class file;
+                    // Otherwise only generate .java, if .jsp file is newer
+                    // than the .java file
+                    if (compilers[i].isOutDated(compile)) {
+                        compilers[i].generate();
+                        generated[i] = true;
+                        if (compile) {
+                            batch.add(compilers[i]);
+                        }
+                    }
+                } catch (Exception e) {
+                    contexts[i] = null;
+                    compilers[i] = null;
+                    processError(files.get(i), e);
                 }
-                scratchDir = new File(new File(temp).getAbsolutePath());
             }
 
-            JspCompilationContext clctxt = new JspCompilationContext
-                ( jspUri, false,  this, context, null, rctxt );
+            if (batch.size() > 1) {
+                Compiler.compileBatch(batch);
+            }
 
-            /* Override the defaults */
-            if ((targetClassName != null) && (targetClassName.length() > 0)) {
-                clctxt.setServletClassName(targetClassName);
-                targetClassName = null;
+            for (int i = 0; i < count; i++) {
+                if (compilers[i] == null) {
+                    continue;
+                }
+                try {
+                    if (generated[i]) {
+                        compilers[i].completeCompile(compile);
+                    }
+                    processDependents(compilers[i]);
+                    if ( showSuccess ) {
+                        log.info( "Built File: " + files.get(i) );
+                    }
+                } catch (Exception e) {
+                    contexts[i] = null;
+                    processError(files.get(i), e);
+                }
             }
-            if (targetPackage != null) {
-                clctxt.setServletPackageName(targetPackage);
+        } finally {
+            if(originalClassLoader != null) {
+                Thread.currentThread().setContextClassLoader(originalClassLoader);
             }
+        }
 
-            originalClassLoader = Thread.currentThread().getContextClassLoader();
-            if( loader==null ) {
-                initClassLoader( clctxt );
-            }
-            Thread.currentThread().setContextClassLoader(loader);
+        return Arrays.asList(contexts);
+    }
 
-            clctxt.setClassLoader(loader);
-            clctxt.setClassPath(classPath);
+    /**
+     * Creates the compilation context of the given page, and sets up
+     * the scratch directory and class loader on first use.
+     */
+    private JspCompilationContext createCompilationContext(String file)
+            throws JasperException, IOException {
 
-            Compiler clc = clctxt.createCompiler(true);
+        String jspUri=file.replace('\\','/');
 
-            // If compile is set, generate both .java and .class, if
-            // .jsp file is newer than .class file;
-            // Otherwise only generate .java, if .jsp file is newer than
-            // the .java file
-            if( clc.isOutDated(compile) ) {
-                clc.compile(compile);
+        // set up a scratch/output dir if none is provided
+        if (scratchDir == null) {
+            String temp = System.getProperty("java.io.tmpdir");
+            if (temp == null) {
+                temp = "";
             }
+            scratchDir = new File(new File(temp).getAbsolutePath());
+        }
 
-            // START SJSAS 6393940
-            if (ignoreJspFragmentErrors) {
-                PageInfo pi = clc.getPageInfo();
-                if (pi != null) {
-                    List<String> deps = pi.getDependants();
-                    if (deps != null) {
-                        Iterator<String> it = deps.iterator();
-                        if (it != null) {
+        JspCompilationContext clctxt = new JspCompilationContext
+            ( jspUri, false,  this, context, null, rctxt );
+
+        /* Override the defaults */
+        if ((targetClassName != null) && (targetClassName.length() > 0)) {
+            clctxt.setServletClassName(targetClassName);
+            targetClassName = null;
+        }
+        if (targetPackage != null) {
+            clctxt.setServletPackageName(targetPackage);
+        }
+
+        if( loader==null ) {
+            initClassLoader( clctxt );
+        }
+        Thread.currentThread().setContextClassLoader(loader);
+
+        clctxt.setClassLoader(loader);
+        clctxt.setClassPath(classPath);
+
+        return clctxt;
+    }
+
+    // START SJSAS 6393940
+    private void processDependents(Compiler clc) {
+        if (ignoreJspFragmentErrors) {
+            PageInfo pi = clc.getPageInfo();
+            if (pi != null) {
+                List<String> deps = pi.getDependants();
+                if (deps != null) {
+                    Iterator<String> it = deps.iterator();
+                    if (it != null) {
+                        synchronized (dependents) {
                             while (it.hasNext()) {
                                 dependents.add(it.next());
                             }
                         }
                     }
-                    clc.setPageInfo(null);
                 }
-	    }
-            // END SJSAS 6393940
-
-            // Generate mapping
-            generateWebMapping( file, clctxt );
-            if ( showSuccess ) {
-                log.info( "Built File: " + file );
+                clc.setPageInfo(null);
             }
+        }
+    }
+    // END SJSAS 6393940
 
-        } catch (JasperException je) {
+    /**
+     * Records the error of the given page, or throws it if processing
+     * is to stop on the first error.
+     */
+    private void processError(String file, Exception e)
+            throws JasperException {
+
+        if (e instanceof JasperException) {
+            JasperException je = (JasperException) e;
             Throwable rootCause = je;
             while (rootCause instanceof JasperException
                     && ((JasperException) rootCause).getRootCause() != null) {
@@ -1222,23 +1416,90 @@ public class JspC implements Options {
                     log.severe(je.getMessage());
                 }
                 // START SJAS 6329723
-                jspErrors.put(jspUri, je);
+                synchronized (jspErrors) {
+                    jspErrors.put(file.replace('\\','/'), je);
+                }
                 // END SJSAS 6329723
             }
+            return;
+        }
 
-        } catch (Exception e) {
-            if ((e instanceof FileNotFoundException) &&
-                        log.isLoggable(Level.WARNING)) {
-                log.warning(Localizer.getMessage("jspc.error.fileDoesNotExist",
-                                                  e.getMessage()));
+        if ((e instanceof FileNotFoundException) &&
+                    log.isLoggable(Level.WARNING)) {
+            log.warning(Localizer.getMessage("jspc.error.fileDoesNotExist",
+                                              e.getMessage()));
+        }
+        throw new JasperException(e);
+    }
+
+    /**
+     * Processes the given batches of pages on a pool of worker threads.
+     *
+     * The first batch is processed on the calling thread, so that the
+     * scratch directory, class loader and configuration shared by all
+     * pages are set up before the workers start.  The web.xml fragment
+     * and the recorded errors are then merged in page order, so that
+     * the output does not depend on the order in which the workers
+     * finish.
+     */
+    private void processBatches(List<List<String>> batches)
+            throws JasperException, IOException {
+
+        ArrayList<JspCompilationContext> contexts =
+            new ArrayList<JspCompilationContext>();
+        contexts.addAll(processBatch(batches.get(0)));
+
+        int nThreads = Math.min(threads, batches.size() - 1);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            ArrayList<Future<List<JspCompilationContext>>> results =
+                new ArrayList<Future<List<JspCompilationContext>>>();
+            for (int i = 1; i < batches.size(); i++) {
+                final List<String> batch = batches.get(i);
+                results.add(executor.submit(
+                        new Callable<List<JspCompilationContext>>() {
+                    public List<JspCompilationContext> call()
+                            throws Exception {
+                        return processBatch(batch);
+                    }
+                }));
             }
-            throw new JasperException(e);
-        } finally {
-            if(originalClassLoader != null) {
-                Thread.currentThread().setContextClassLoader(originalClassLoader);
+            for (Future<List<JspCompilationContext>> result: results) {
+                try {
+                    contexts.addAll(result.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JasperException(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof JasperException) {
+                        throw (JasperException) cause;
+                    }
+                    throw new JasperException(cause);
+                }
             }
+        } finally {
+            executor.shutdownNow();
         }
 
+        Map<String,JasperException> errors =
+            new LinkedHashMap<String,JasperException>();
+        int i = 0;
+        for (List<String> batch: batches) {
+            for (String file: batch) {
+                JspCompilationContext clctxt = contexts.get(i++);
+                if (clctxt != null) {
+                    generateWebMapping(file, clctxt);
+                } else {
+                    String jspUri = file.replace('\\','/');
+                    JasperException je = jspErrors.get(jspUri);
+                    if (je != null) {
+                        errors.put(jspUri, je);
+                    }
+                }
+            }
+        }
+        jspErrors = errors;
     }
 
     /**
@@ -1323,6 +1584,7 @@ public class JspC implements Options {
 
 	    initWebXml();
 
+            ArrayList<String> files = new ArrayList<String>(pages.size());
             for (String nextjsp: pages) {
                 File fjsp = new File(nextjsp);
                 if (!fjsp.isAbsolute()) {
@@ -1342,9 +1604,30 @@ public class JspC implements Options {
                 if (nextjsp.startsWith("." + File.separatorChar)) {
                     nextjsp = nextjsp.substring(2);
                 }
-		processFile(nextjsp);
+                files.add(nextjsp);
 	    }
 
+            List<List<String>> batches = new ArrayList<List<String>>();
+            int size = Math.max(batchSize, 1);
+            for (int i = 0; i < files.size(); i += size) {
+                batches.add(files.subList(i,
+                                          Math.min(i + size, files.size())));
+            }
+
+            if (threads > 1 && batches.size() > 1) {
+                processBatches(batches);
+            } else {
+                for (List<String> batch: batches) {
+                    List<JspCompilationContext> contexts =
+                        processBatch(batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (contexts.get(i) != null) {
+                            generateWebMapping(batch.get(i), contexts.get(i));
+                        }
+                    }
+                }
+            }
+
             // START SJSAS 6393940
             if (ignoreJspFragmentErrors) {
                 purgeJspFragmentErrors();
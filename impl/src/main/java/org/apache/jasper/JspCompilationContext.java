@@ -486,6 +486,14 @@ public class JspCompilationContext {
         return derivedPackageName;
     }
 	    
+    /**
+     * The package name into which the servlet classes are generated, not
+     * including the package derived from the location of the page.
+     */
+    public String getBasePackageName() {
+        return basePackageName;
+    }
+
     /**
      * The package name into which the servlet class is generated.
      */
@@ -110,6 +110,18 @@ public interface Options {
      */
     public int getCheckInterval();
 
+    /**
+     * Should the background compile thread watch the file system for
+     * changes, instead of checking all the JSP files at every interval?
+     */
+    public boolean getWatchChanges();
+
+    /**
+     * Number of threads used by the background compile thread to
+     * recompile the JSP files
+     */
+    public int getBackgroundCompileThreads();
+
     /**
      * Is Jasper being used in development mode?
      */
@@ -227,6 +239,29 @@ public interface Options {
      */
     public boolean genStringAsByteArray();
 
+    /**
+     * Should jsp:setProperty call the setter of a bean declared with
+     * jsp:useBean directly, when the property can be resolved at compile
+     * time, instead of using reflection at runtime?  A bean that is
+     * missing or of another type is still handled by reflection, and the
+     * conversion errors are still reported as a JasperException.
+     */
+    public boolean genDirectBeanAccess();
+
+    /**
+     * Should simple EL expressions, such as ${bean.property} or ${a == 'b'},
+     * be translated to Java code instead of being evaluated by the EL
+     * interpreter?
+     */
+    public boolean genELAsJava();
+
+    /**
+     * The approximate number of lines of Java code in each of the helper
+     * methods that the parts of _jspService without scripting elements
+     * are moved to, or 0 if _jspService is not to be split.
+     */
+    public int getServiceMethodSplitSize();
+
     /**
      * If the buffer attribute for the page directive is not specified,
      * is the default "none"?
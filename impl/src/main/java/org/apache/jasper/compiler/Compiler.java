@@ -60,6 +60,7 @@ package org.apache.jasper.compiler;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.net.JarURLConnection;
@@ -108,6 +109,9 @@ public class Compiler {
     private Node.Nodes pageNodes;
     private long jspModTime;
     private boolean javaCompilerOptionsSet;
+    // Set when the Java source was compiled as part of a batch
+    private boolean javaCompiled;
+    private JavacErrorDetail[] javacErrors;
 
     // ------------------------------------------------------------ Constructor
 
@@ -380,9 +384,12 @@ public class Compiler {
 
         setJavaCompilerOptions();
 
-        // Start java compilation
-        JavacErrorDetail[] javacErrors =
-            javaCompiler.compile(ctxt.getFullClassName(), pageNodes);
+        // Start java compilation, unless already done by compileBatch
+        JavacErrorDetail[] javacErrors = this.javacErrors;
+        if (!javaCompiled) {
+            javacErrors =
+                javaCompiler.compile(ctxt.getFullClassName(), pageNodes);
+        }
 
         if (javacErrors != null) {
             // If there are errors, always generate java files to disk.
@@ -436,7 +443,20 @@ public class Compiler {
     public void compile(boolean compileClass)
         throws FileNotFoundException, JasperException, Exception
     {
-           
+        generate();
+        completeCompile(compileClass);
+    }
+
+    /**
+     * Generates the .java file for the jsp file, without compiling it.
+     * The compilation must be completed with {@link #completeCompile},
+     * possibly after the .java files of several pages have been compiled
+     * together with {@link #compileBatch}.
+     */
+    public void generate()
+        throws FileNotFoundException, JasperException, Exception
+    {
+        boolean generated = false;
         try {
             // Create the output directory for the generated files
             // Always try and create the directory tree, in case the generated
@@ -448,7 +468,29 @@ public class Compiler {
             if (errDispatcher == null) {
                 errDispatcher = new ErrorDispatcher(jspcMode);
             }
+            javaCompiled = false;
+            javacErrors = null;
             generateJava();
+            generated = true;
+        } finally {
+            if (!generated) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Completes the compilation of the jsp file whose .java file was
+     * generated by {@link #generate}.  Java compilation errors, including
+     * those found by {@link #compileBatch}, are reported here.
+     *
+     * @param compileClass If true, generate the .class file
+     *                     If false, only save the .java file
+     */
+    public void completeCompile(boolean compileClass)
+        throws FileNotFoundException, JasperException, Exception
+    {
+        try {
             if (compileClass) {
                 generateClass();
             }
@@ -458,24 +500,85 @@ public class Compiler {
                 javaCompiler.doJavaFile(ctxt.keepGenerated());
             }
         } finally {
-            if (tfp != null) {
-                tfp.removeProtoTypeFiles(null);
-            }
-            javaCompiler.release();
-            // Make sure these object which are only used during the
-            // generation and compilation of the JSP page get
-            // dereferenced so that they can be GC'd and reduce the
-            // memory footprint.
-            tfp = null;
-            errDispatcher = null;
-            if (!jspcMode) {
-                pageInfo = null;
+            release();
+        }
+    }
+
+    /**
+     * Compiles the .java files generated by {@link #generate} for several
+     * pages together, with a single Java compiler invocation, so that the
+     * compiler is set up, and the classes used by the pages are resolved,
+     * only once.  This is only supported by the JSR 199 compiler; the pages
+     * it cannot handle are compiled on their own by
+     * {@link #completeCompile}, which must still be called for each page.
+     */
+    public static void compileBatch(List<Compiler> compilers)
+        throws JasperException
+    {
+        ArrayList<Compiler> batch = new ArrayList<Compiler>();
+        ArrayList<Jsr199JavaCompiler> javaCompilers =
+            new ArrayList<Jsr199JavaCompiler>();
+        ArrayList<Node.Nodes> pageNodes = new ArrayList<Node.Nodes>();
+        for (Compiler compiler: compilers) {
+            if (compiler.pageNodes == null || compiler.javaCompiled
+                    || compiler.ctxt.isPrototypeMode()
+                    || !(compiler.javaCompiler instanceof Jsr199JavaCompiler)){
+                continue;
             }
-            pageNodes = null;
-            if (ctxt.getWriter() != null) {
-                ctxt.getWriter().close();
-                ctxt.setWriter(null);
+            compiler.setJavaCompilerOptions();
+            Jsr199JavaCompiler javaCompiler =
+                (Jsr199JavaCompiler) compiler.javaCompiler;
+            // All the pages of a batch are compiled with the same options
+            if (!javaCompilers.isEmpty()
+                    && !javaCompilers.get(0).isCompatible(javaCompiler)) {
+                continue;
             }
+            batch.add(compiler);
+            javaCompilers.add(javaCompiler);
+            pageNodes.add(compiler.pageNodes);
+        }
+        if (batch.size() < 2) {
+            return;
+        }
+
+        long t1 = System.currentTimeMillis();
+        JavacErrorDetail[][] errors =
+            Jsr199JavaCompiler.compile(javaCompilers, pageNodes);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).javacErrors = errors[i];
+            batch.get(i).javaCompiled = true;
+        }
+        Logger log = batch.get(0).log;
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Compiled " + batch.size() + " pages in "
+                     + (System.currentTimeMillis() - t1) + "ms");
+        }
+    }
+
+    /*
+     * Dereference the objects which are only used during the generation
+     * and compilation of the JSP page.
+     */
+    private void release() throws IOException {
+        if (tfp != null) {
+            tfp.removeProtoTypeFiles(null);
+        }
+        javaCompiler.release();
+        // Make sure these object which are only used during the
+        // generation and compilation of the JSP page get
+        // dereferenced so that they can be GC'd and reduce the
+        // memory footprint.
+        tfp = null;
+        errDispatcher = null;
+        if (!jspcMode) {
+            pageInfo = null;
+        }
+        pageNodes = null;
+        javacErrors = null;
+        javaCompiled = false;
+        if (ctxt.getWriter() != null) {
+            ctxt.getWriter().close();
+            ctxt.setWriter(null);
         }
     }
 
@@ -622,23 +725,15 @@ public class Compiler {
             return false;
         }
 
+        JspRuntimeContext rctxt = ctxt.getRuntimeContext();
         for (String include: depends) {
             try {
-                URL includeUrl = ctxt.getResource(include);
-                if (includeUrl == null) {
+                long includeLastModified =
+                    rctxt.getResourceLastModified(include, ctxt);
+                if (includeLastModified < 0) {
                     return true;
                 }
 
-                URLConnection includeUconn = includeUrl.openConnection();
-                long includeLastModified = 0;
-                if (includeUconn instanceof JarURLConnection) {
-                    includeLastModified =
-                       ((JarURLConnection)includeUconn).getJarEntry().getTime();
-                } else {
-                    includeLastModified = includeUconn.getLastModified();
-                }
-                includeUconn.getInputStream().close();
-
                 if (includeLastModified > targetLastModified) {
                     // START GlassFish 750
                     if (include.endsWith(".tld")) {
@@ -695,6 +790,7 @@ public class Compiler {
         try {
             String classFileName = ctxt.getClassFileName();
             if (classFileName != null) {
+                ctxt.getRuntimeContext().cancelClassSave(classFileName);
                 File classFile = new File(classFileName);
                 if( log.isLoggable(Level.FINE) )
                     log.fine( "Deleting " + classFile );
@@ -706,6 +802,7 @@ public class Compiler {
         try {
             String javaFileName = ctxt.getServletJavaFileName();
             if (javaFileName != null) {
+                ctxt.getRuntimeContext().cancelSave(javaFileName);
                 File javaFile = new File(javaFileName);
                 if( log.isLoggable(Level.FINE) )
                     log.fine( "Deleting " + javaFile );
@@ -720,6 +817,7 @@ public class Compiler {
         try {
             String classFileName = ctxt.getClassFileName();
             if (classFileName != null) {
+                ctxt.getRuntimeContext().cancelClassSave(classFileName);
                 File classFile = new File(classFileName);
                 if( log.isLoggable(Level.FINE) )
                     log.fine( "Deleting " + classFile );
@@ -0,0 +1,349 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Translates simple EL expressions to Java code, so that the generated
+ * page does not have to parse and interpret them.
+ *
+ * Only a single "${...}" expression of the following forms is translated:
+ * a string, integer, boolean or null literal; an identifier followed by any
+ * number of ".name", "['name']" or "[index]" properties; or an "==" ("eq")
+ * or "!=" ("ne") comparison of two of these.  The scoped attributes and
+ * the param, requestScope, pageScope, applicationScope and initParam
+ * implicit objects are looked up directly.  Identifiers that do not start
+ * with a lower case letter could name an imported class, and are left to
+ * the interpreter, as are all the other forms.
+ *
+ * ELParser only recognizes the functions in an expression, so the subset
+ * handled here is parsed by this class.
+ */
+final class ELTranslator {
+
+    private static final String RUNTIME =
+        "org.apache.jasper.runtime.ELRuntimeLibrary";
+
+    private static final String reservedWords[] = {
+        "and", "div", "empty", "eq", "false",
+        "ge", "gt", "instanceof", "le", "lt", "mod",
+        "ne", "not", "null", "or", "true"};
+
+    private final String expression;
+    private final String pageContext;
+    private int index;
+
+    private ELTranslator(String expression, String pageContext) {
+        this.expression = expression;
+        this.pageContext = pageContext;
+    }
+
+    /**
+     * Returns a Java expression of type Object for the given EL expression,
+     * or null if the expression is not of a form that can be translated.
+     * @param expression the EL expression, including "${" and "}"
+     * @param pageContext Java code for the PageContext of the page
+     */
+    static String translate(String expression, String pageContext) {
+        if (!expression.startsWith("${") || !expression.endsWith("}")) {
+            return null;
+        }
+        Iterator<ELNode> nodes = ELParser.parse(expression).iterator();
+        if (!nodes.hasNext()) {
+            return null;
+        }
+        ELNode node = nodes.next();
+        if (nodes.hasNext() || !(node instanceof ELNode.Root)) {
+            return null;
+        }
+        Iterator<ELNode> parts =
+            ((ELNode.Root) node).getExpression().iterator();
+        while (parts.hasNext()) {
+            if (!(parts.next() instanceof ELNode.ELText)) {
+                return null;
+            }
+        }
+        return new ELTranslator(
+                expression.substring(2, expression.length() - 1),
+                pageContext).translate();
+    }
+
+    private String translate() {
+        String left = operand();
+        if (left == null) {
+            return null;
+        }
+        skipSpaces();
+        if (index == expression.length()) {
+            return left;
+        }
+        boolean equal;
+        if (expression.startsWith("==", index)) {
+            equal = true;
+            index += 2;
+        } else if (expression.startsWith("!=", index)) {
+            equal = false;
+            index += 2;
+        } else {
+            String op = identifier();
+            if ("eq".equals(op)) {
+                equal = true;
+            } else if ("ne".equals(op)) {
+                equal = false;
+            } else {
+                return null;
+            }
+        }
+        String right = operand();
+        if (right == null) {
+            return null;
+        }
+        skipSpaces();
+        if (index != expression.length()) {
+            return null;
+        }
+        return "Boolean.valueOf(" + (equal ? "" : "!") + RUNTIME
+            + ".equals(" + pageContext + ", " + left + ", " + right + "))";
+    }
+
+    /*
+     * Parses a literal or a property path.
+     */
+    private String operand() {
+        skipSpaces();
+        if (index == expression.length()) {
+            return null;
+        }
+        char ch = expression.charAt(index);
+        if (ch == '\'' || ch == '"') {
+            String s = stringLiteral();
+            return s == null ? null : Generator.quote(s);
+        }
+        if (ch >= '0' && ch <= '9') {
+            return integerLiteral();
+        }
+        String id = identifier();
+        if (id == null) {
+            return null;
+        }
+        if ("true".equals(id)) {
+            return "Boolean.TRUE";
+        }
+        if ("false".equals(id)) {
+            return "Boolean.FALSE";
+        }
+        if ("null".equals(id)) {
+            return "null";
+        }
+        if (isReserved(id)) {
+            return null;
+        }
+        return path(id);
+    }
+
+    private String path(String id) {
+        String value;
+        if ("param".equals(id) || "requestScope".equals(id)
+                || "pageScope".equals(id) || "applicationScope".equals(id)
+                || "initParam".equals(id)) {
+            // Only translated with a constant name
+            String name = property();
+            if (name == null || !name.startsWith("\"")) {
+                return null;
+            }
+            if ("param".equals(id)) {
+                value = pageContext + ".getRequest().getParameter(" + name
+                    + ")";
+            } else if ("requestScope".equals(id)) {
+                value = pageContext + ".getRequest().getAttribute(" + name
+                    + ")";
+            } else if ("pageScope".equals(id)) {
+                value = pageContext + ".getAttribute(" + name + ")";
+            } else if ("applicationScope".equals(id)) {
+                value = pageContext + ".getServletContext().getAttribute("
+                    + name + ")";
+            } else {
+                value = pageContext
+                    + ".getServletContext().getInitParameter(" + name + ")";
+            }
+        } else if ("pageContext".equals(id) || "paramValues".equals(id)
+                || "header".equals(id) || "headerValues".equals(id)
+                || "cookie".equals(id) || "sessionScope".equals(id)
+                || !Character.isLowerCase(id.charAt(0))) {
+            return null;
+        } else {
+            value = pageContext + ".findAttribute(" + Generator.quote(id)
+                + ")";
+        }
+
+        while (true) {
+            skipSpaces();
+            if (index == expression.length()
+                    || (expression.charAt(index) != '.'
+                        && expression.charAt(index) != '[')) {
+                return value;
+            }
+            String property = property();
+            if (property == null) {
+                return null;
+            }
+            value = RUNTIME + ".getValue(" + pageContext + ", " + value
+                + ", " + property + ")";
+        }
+    }
+
+    /*
+     * Parses ".name", "['name']" or "[index]", and returns the Java code
+     * for the name or index.
+     */
+    private String property() {
+        skipSpaces();
+        if (index == expression.length()) {
+            return null;
+        }
+        char ch = expression.charAt(index++);
+        if (ch == '.') {
+            skipSpaces();
+            String id = identifier();
+            if (id == null || isReserved(id)) {
+                return null;
+            }
+            return Generator.quote(id);
+        }
+        if (ch != '[') {
+            return null;
+        }
+        skipSpaces();
+        if (index == expression.length()) {
+            return null;
+        }
+        String property;
+        ch = expression.charAt(index);
+        if (ch == '\'' || ch == '"') {
+            String s = stringLiteral();
+            property = s == null ? null : Generator.quote(s);
+        } else if (ch >= '0' && ch <= '9') {
+            property = integerLiteral();
+        } else {
+            return null;
+        }
+        skipSpaces();
+        if (property == null || index == expression.length()
+                || expression.charAt(index++) != ']') {
+            return null;
+        }
+        return property;
+    }
+
+    private String stringLiteral() {
+        char quote = expression.charAt(index++);
+        StringBuilder buf = new StringBuilder();
+        while (index < expression.length()) {
+            char ch = expression.charAt(index++);
+            if (ch == quote) {
+                return buf.toString();
+            }
+            if (ch == '\\') {
+                if (index == expression.length()) {
+                    return null;
+                }
+                ch = expression.charAt(index++);
+                if (ch != '\\' && ch != '\'' && ch != '"') {
+                    return null;
+                }
+            }
+            buf.append(ch);
+        }
+        return null;
+    }
+
+    private String integerLiteral() {
+        int start = index;
+        while (index < expression.length()
+                && expression.charAt(index) >= '0'
+                && expression.charAt(index) <= '9') {
+            index++;
+        }
+        if (index < expression.length()) {
+            char ch = expression.charAt(index);
+            if (ch == '.' || ch == 'e' || ch == 'E'
+                    || Character.isJavaIdentifierPart(ch)) {
+                // A floating point literal, or not a literal at all
+                return null;
+            }
+        }
+        try {
+            long value = Long.parseLong(expression.substring(start, index));
+            return "Long.valueOf(" + value + "L)";
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String identifier() {
+        skipSpaces();
+        int start = index;
+        if (index == expression.length()
+                || !Character.isJavaIdentifierStart(
+                        expression.charAt(index))) {
+            return null;
+        }
+        index++;
+        while (index < expression.length()
+                && Character.isJavaIdentifierPart(expression.charAt(index))) {
+            index++;
+        }
+        return expression.substring(start, index);
+    }
+
+    private void skipSpaces() {
+        while (index < expression.length()
+                && Character.isWhitespace(expression.charAt(index))) {
+            index++;
+        }
+    }
+
+    private static boolean isReserved(String id) {
+        return Arrays.binarySearch(reservedWords, id) >= 0;
+    }
+}
@@ -118,6 +118,9 @@ class Generator {
     private boolean isPoolingEnabled;
     private boolean breakAtLF;
     private boolean genBytes;
+    private boolean genDirectBeanAccess;
+    private boolean genELAsJava;
+    private int serviceMethodSplitSize;
     private PageInfo pageInfo;
     private Set<String> tagHandlerPoolNames;
     private GenBuffer arrayBuffer;
@@ -181,6 +184,102 @@ class Generator {
         return b.toString();
     }
 
+    /*
+     * Returns the code converting the non-empty String held by the given
+     * variable to the given type, as JspRuntimeLibrary.convert does when
+     * there is no property editor, or null if the type is not supported.
+     */
+    private static String convertBeanValue(String var, Class<?> type) {
+        if (type == String.class) {
+            return var;
+        } else if (type == Boolean.TYPE) {
+            return "(" + var + ".equalsIgnoreCase(\"on\") || "
+                + var + ".equalsIgnoreCase(\"true\"))";
+        } else if (type == Boolean.class) {
+            return "Boolean.valueOf(" + var + ".equalsIgnoreCase(\"on\") || "
+                + var + ".equalsIgnoreCase(\"true\"))";
+        } else if (type == Character.TYPE) {
+            return var + ".charAt(0)";
+        } else if (type == Character.class) {
+            return "Character.valueOf(" + var + ".charAt(0))";
+        } else if (type == Byte.TYPE) {
+            return "Byte.parseByte(" + var + ")";
+        } else if (type == Short.TYPE) {
+            return "Short.parseShort(" + var + ")";
+        } else if (type == Integer.TYPE) {
+            return "Integer.parseInt(" + var + ")";
+        } else if (type == Long.TYPE) {
+            return "Long.parseLong(" + var + ")";
+        } else if (type == Float.TYPE) {
+            return "Float.parseFloat(" + var + ")";
+        } else if (type == Double.TYPE) {
+            return "Double.parseDouble(" + var + ")";
+        } else if (type == Byte.class || type == Short.class
+                || type == Integer.class || type == Long.class
+                || type == Float.class || type == Double.class) {
+            return type.getName() + ".valueOf(" + var + ")";
+        }
+        return null;
+    }
+
+    /*
+     * Returns the Java literal for a value converted at compile time to the
+     * given type, or null if there is no such literal.
+     */
+    private static String toJavaLiteral(Object value, Class<?> type) {
+        if (value == null) {
+            return null;
+        }
+        String literal;
+        if (value instanceof String) {
+            return quote((String) value);
+        } else if (value instanceof Boolean) {
+            literal = value.toString();
+        } else if (value instanceof Character) {
+            literal = quote(((Character) value).charValue());
+        } else if (value instanceof Byte) {
+            literal = "(byte) " + value;
+        } else if (value instanceof Short) {
+            literal = "(short) " + value;
+        } else if (value instanceof Integer) {
+            literal = value.toString();
+        } else if (value instanceof Long) {
+            literal = value + "L";
+        } else if (value instanceof Float) {
+            Float f = (Float) value;
+            if (f.isNaN() || f.isInfinite()) {
+                return null;
+            }
+            literal = f + "f";
+        } else if (value instanceof Double) {
+            Double d = (Double) value;
+            if (d.isNaN() || d.isInfinite()) {
+                return null;
+            }
+            literal = d + "d";
+        } else {
+            return null;
+        }
+        if (!type.isPrimitive()) {
+            literal = type.getName() + ".valueOf(" + literal + ")";
+        }
+        return literal;
+    }
+
+    /*
+     * Can the given type be named in the generated code?
+     */
+    private static boolean isAccessibleType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return true;
+        }
+        return !type.isArray()
+            && type.getDeclaringClass() == null
+            && Modifier.isPublic(type.getModifiers())
+            && type != ValueExpression.class
+            && type != MethodExpression.class;
+    }
+
     /**
      * Generates declarations.  This includes "info" of the page directive,
      * and scriptlet declarations.
@@ -451,8 +550,6 @@ class Generator {
                 out.printin("private static final String _jspx_encoding = ");
                 out.print(quote(encoding));
                 out.println(";");
-                out.printil("private boolean _jspx_gen_bytes = true;");
-                out.printil("private boolean _jspx_encoding_tested;");
             } catch (java.io.UnsupportedEncodingException ex) {
                 genBytes = false;
             }
@@ -511,20 +608,23 @@ class Generator {
             out.printil("}");
             out.println();
 
-            // Generate code to see if the response encoding has been set
-            // differently from the encoding declared in the page directive.
-            // Note that we only need to do the test once.  The assumption
-            // is that the encoding cannot be changed once some data has been
-            // written.
-            out.printil("private boolean _jspx_same_encoding(String encoding) {");
+            // Generate code to write the bytes of a String.  JspWriterImpl
+            // checks, for each request, that the response uses the encoding
+            // declared in the page directive, and writes the String
+            // otherwise.  Any other writer, e.g. a BodyContent pushed by a
+            // scriptlet or a tag handler, gets the String.
+            out.printil("private static void _jspx_write(JspWriter out, byte[] bytes, String s)");
+            out.printil("        throws java.io.IOException {");
             out.pushIndent();
-            out.printil("if (! _jspx_encoding_tested) {");
+            out.printil("if (out instanceof org.apache.jasper.runtime.JspWriterImpl) {");
             out.pushIndent();
-            out.printil("_jspx_gen_bytes = _jspx_encoding.equals(encoding);");
-            out.printil("_jspx_encoding_tested = true;");
+            out.printil("((org.apache.jasper.runtime.JspWriterImpl)out).write(_jspx_encoding, bytes, s);");
+            out.popIndent();
+            out.printil("} else {");
+            out.pushIndent();
+            out.printil("out.write(s);");
             out.popIndent();
             out.printil("}");
-            out.printil("return _jspx_gen_bytes;");
             out.popIndent();
             out.printil("}");
             out.println();
@@ -737,6 +837,7 @@ class Generator {
         private FragmentHelperClass fragmentHelperClass;
         private int methodNesting;
         private int arrayCount;
+        private int serviceMethodCount;
         private HashMap<String, String> textMap;
 
         /**
@@ -792,7 +893,7 @@ class Generator {
                         v,
                         expectedType,
                         attr.getEL().getMapName(),
-                        null, null, null);
+                        null, null, null, genELAsJava);
                 if (encode) {
                     return "org.apache.jasper.runtime.JspRuntimeLibrary.URLEncode("
                         + v
@@ -878,7 +979,7 @@ class Generator {
                             n.getText(),
                             String.class,
                             n.getEL().getMapName(),
-                            null, null, null)
+                            null, null, null, genELAsJava)
                         + ");");
             } else {
                 out.printil(
@@ -1075,6 +1176,13 @@ class Generator {
 
             n.setBeginJavaLine(out.getJavaLine());
 
+            if (genDirectBeanAccess && !"*".equals(property)
+                    && generateDirectSetProperty(name, property, param,
+                                                 value)) {
+                n.setEndJavaLine(out.getJavaLine());
+                return;
+            }
+
             if ("*".equals(property)) {
                 out.printil(
                     "org.apache.jasper.runtime.JspRuntimeLibrary.introspect("
@@ -1158,6 +1266,170 @@ class Generator {
             n.setEndJavaLine(out.getJavaLine());
         }
 
+        /*
+         * Generates a direct call to the setter of a bean declared with
+         * jsp:useBean, for a jsp:setProperty whose property is resolved at
+         * compile time.  The String values are converted inline, as in
+         * JspRuntimeLibrary.convert.  Returns false, without generating
+         * anything, if the setter or the conversion is not known at compile
+         * time, in which case the property is set by reflection at runtime.
+         */
+        private boolean generateDirectSetProperty(String name,
+                                                  String property,
+                                                  String param,
+                                                  Node.JspAttribute value)
+                throws JasperException {
+
+            if (!beanInfo.checkVariable(name)) {
+                return false;
+            }
+
+            Class<?> beanClass;
+            Method setter;
+            try {
+                beanClass = beanInfo.getBeanType(name);
+                if (JspRuntimeLibrary.getPropertyEditorClass(
+                        beanClass, property) != null) {
+                    return false;
+                }
+                setter = JspRuntimeLibrary.getWriteMethod(beanClass,
+                                                          property);
+            } catch (JasperException ex) {
+                // Let the runtime report the error, if the code is reached
+                return false;
+            }
+
+            Class<?> type = setter.getParameterTypes()[0];
+            String beanVar = JspUtil.nextTemporaryVariableName();
+            String arg;
+            String guard = null;
+            String fallback;
+
+            if (value == null) {
+                if (param == null)
+                    param = property; // default to same as property
+                String tmpVar = JspUtil.nextTemporaryVariableName();
+                if (type == String[].class) {
+                    out.printil("String[] " + tmpVar
+                        + " = request.getParameterValues("
+                        + quote(param) + ");");
+                    guard = tmpVar + " != null";
+                    arg = tmpVar;
+                    fallback = introspecthelperCall(beanVar, property,
+                        "request.getParameter(" + quote(param) + ")",
+                        "request", quote(param));
+                } else {
+                    arg = convertBeanValue(tmpVar, type);
+                    if (arg == null) {
+                        return false;
+                    }
+                    out.printil("String " + tmpVar
+                        + " = request.getParameter(" + quote(param) + ");");
+                    guard = tmpVar + " != null && "
+                        + tmpVar + ".length() > 0";
+                    fallback = introspecthelperCall(beanVar, property,
+                        tmpVar, "request", quote(param));
+                }
+            } else if (value.isELInterpreterInput()) {
+                if (!isAccessibleType(type)) {
+                    return false;
+                }
+                arg = JspUtil.interpreterCall(
+                    this.isTagFile,
+                    value.getValue(),
+                    type,
+                    value.getEL().getMapName(),
+                    null, null, null, genELAsJava);
+                fallback =
+                    "org.apache.jasper.runtime.JspRuntimeLibrary.handleSetPropertyExpression("
+                    + beanVar + ", " + quote(property) + ", "
+                    + quote(value.getValue()) + ", _jspx_page_context, "
+                    + value.getEL().getMapName() + ");";
+            } else if (value.isNamedAttribute()) {
+                if (convertBeanValue("X", type) == null) {
+                    return false;
+                }
+                String valueVarName =
+                    generateNamedAttributeValue(value.getNamedAttributeNode());
+                // As in JspRuntimeLibrary.convert, an empty value sets no
+                // character, and fails to convert to a number
+                if (type == Character.TYPE || type == Character.class) {
+                    guard = valueVarName + ".length() > 0";
+                }
+                arg = convertBeanValue(valueVarName, type);
+                fallback = introspecthelperCall(beanVar, property,
+                    valueVarName, "null", "null");
+            } else if (!value.isExpression()) {
+                // A literal value is converted at compile time
+                arg = null;
+                try {
+                    Object converted = JspRuntimeLibrary.convert(
+                        property, value.getValue(), type, null);
+                    arg = toJavaLiteral(converted, type);
+                } catch (JasperException ex) {
+                    // Let the runtime report the error, if the code is
+                    // reached
+                }
+                if (arg == null) {
+                    return false;
+                }
+                fallback = introspecthelperCall(beanVar, property,
+                    quote(value.getValue()), "null", "null");
+            } else {
+                // The type of a scripting expression is not known here
+                return false;
+            }
+
+            // A bean that is missing, or of another type, is left to
+            // JspRuntimeLibrary, as are the errors it reports.  The
+            // conversion and setter errors are wrapped in a
+            // JasperException, as JspRuntimeLibrary does.
+            String beanType = JspUtil.getCanonicalName(beanClass);
+            String exVar = JspUtil.nextTemporaryVariableName();
+            out.printil("Object " + beanVar
+                + " = _jspx_page_context.findAttribute(" + quote(name) + ");");
+            out.printil("if (" + beanVar + " instanceof " + beanType + ") {");
+            out.pushIndent();
+            if (guard != null) {
+                out.printil("if (" + guard + ") {");
+                out.pushIndent();
+            }
+            out.printil("try {");
+            out.pushIndent();
+            out.printil("((" + beanType + ") " + beanVar + ")."
+                + setter.getName() + "(" + arg + ");");
+            out.popIndent();
+            out.printil("} catch (Exception " + exVar + ") {");
+            out.pushIndent();
+            out.printil("throw new org.apache.jasper.JasperException("
+                + exVar + ");");
+            out.popIndent();
+            out.printil("}");
+            if (guard != null) {
+                out.popIndent();
+                out.printil("}");
+            }
+            out.popIndent();
+            out.printil("} else {");
+            out.pushIndent();
+            out.printil(fallback);
+            out.popIndent();
+            out.printil("}");
+            return true;
+        }
+
+        /*
+         * Returns the statement setting a bean property by reflection, for
+         * a bean that is not of the type known at compile time.
+         */
+        private String introspecthelperCall(String beanVar, String property,
+                                            String value, String request,
+                                            String param) {
+            return "org.apache.jasper.runtime.JspRuntimeLibrary.introspecthelper("
+                + beanVar + ", " + quote(property) + ", " + value + ", "
+                + request + ", " + param + ", false);";
+        }
+
         public void visit(Node.UseBean n) throws JasperException {
 
             String name = n.getTextAttribute("id");
@@ -1623,6 +1895,99 @@ class Generator {
             n.setEndJavaLine(out.getJavaLine());
         }
 
+        public void visit(Node.Root n) throws JasperException {
+            visitServiceBody(n);
+        }
+
+        public void visit(Node.JspRoot n) throws JasperException {
+            visitServiceBody(n);
+        }
+
+        /*
+         * Visits the body of a page.  When serviceMethodSplitSize is set,
+         * the runs of nodes at the top level of _jspService that need none
+         * of its local variables are generated in helper methods of about
+         * serviceMethodSplitSize lines of Java code, so that _jspService
+         * stays below the size that the JIT compiles.
+         */
+        private void visitServiceBody(Node n) throws JasperException {
+            Node.Nodes body = n.getBody();
+            if (serviceMethodSplitSize <= 0 || body == null || isTagFile
+                    || isFragment || parent != null || methodNesting > 0) {
+                visitBody(n);
+                return;
+            }
+
+            boolean[] movable = new boolean[body.size()];
+            for (int i = 0; i < movable.length; i++) {
+                movable[i] = isMovable(body.getNode(i));
+            }
+
+            ServletWriter outSave = out;
+            Node.Nodes methodNodes = null;
+            for (int i = 0; i < movable.length; i++) {
+                Node child = body.getNode(i);
+                if (methodNodes == null && movable[i]
+                        && i + 1 < movable.length && movable[i + 1]) {
+                    // A single node is left in place, since a tag
+                    // already has its own method.
+                    methodNodes = new Node.Nodes();
+                    openServiceMethod(methodNodes);
+                } else if (methodNodes != null && !movable[i]) {
+                    closeServiceMethod(outSave);
+                    methodNodes = null;
+                }
+                child.accept(this);
+                if (methodNodes != null) {
+                    methodNodes.add(child);
+                    if (out.getJavaLine() > serviceMethodSplitSize) {
+                        closeServiceMethod(outSave);
+                        methodNodes = null;
+                    }
+                }
+            }
+            if (methodNodes != null) {
+                closeServiceMethod(outSave);
+            }
+        }
+
+        private void openServiceMethod(Node.Nodes methodNodes) {
+            String method = "_jspx_meth_service_" + serviceMethodCount++;
+
+            // Generate a call to this method
+            out.printil("if (" + method
+                        + "(request, response, _jspx_page_context))");
+            out.pushIndent();
+            out.printil("return;");
+            out.popIndent();
+
+            GenBuffer genBuffer = new GenBuffer(null, methodNodes);
+            methodsBuffered.add(genBuffer);
+            out = genBuffer.getOut();
+            methodNesting++;
+
+            out.println();
+            out.pushIndent();
+            out.printin("private boolean ");
+            out.print(method);
+            out.println("(HttpServletRequest request,");
+            out.printil("        HttpServletResponse response,");
+            out.printil("        PageContext _jspx_page_context)");
+            out.printil("        throws Throwable {");
+            out.pushIndent();
+            out.printil("PageContext pageContext = _jspx_page_context;");
+            out.printil("JspWriter out = _jspx_page_context.getOut();");
+        }
+
+        private void closeServiceMethod(ServletWriter outSave) {
+            out.printil("return false;");
+            out.popIndent();
+            out.printil("}");
+            out.popIndent();
+            methodNesting--;
+            out = outSave;
+        }
+
         public void visit(Node.NamedAttribute n) throws JasperException {
             // Don't visit body of this tag - we already did earlier.
         }
@@ -2005,7 +2370,7 @@ class Generator {
                 }
 
                 if (genBytes) {
-                    out.printin("((org.apache.jasper.runtime.JspWriterImpl)out).write(_jspx_same_encoding(response.getCharacterEncoding()), ");
+                    out.printin("_jspx_write(out, ");
                     out.print(arrayName);
                     out.print(", ");
                     out.print(arrayName);
@@ -2913,7 +3278,8 @@ class Generator {
                         attr.getEL().getMapName(),
                         attr.getExpectedType(),
                         attr.getExpectedReturnType(),
-                        attr.getExpectedParamTypes());
+                        attr.getExpectedParamTypes(),
+                        genELAsJava);
             } else {
                 attrValue =
                     convertString(
@@ -3260,8 +3626,11 @@ class Generator {
                 // lone EL expressions (no need to pushBody here either).
 
                 if (!templateTextOptimization) {
+                    boolean genBytesSave = genBytes;
+                    genBytes = false;  // Can't handle bytes in a body content
                     out.printil("out = _jspx_page_context.pushBody();");
                     visitBody(n);
+                    genBytes = genBytesSave;
                     out.printil(
                         "String "
                             + varName
@@ -3437,8 +3806,14 @@ class Generator {
         }
         beanInfo = pageInfo.getBeanRepository();
         breakAtLF = ctxt.getOptions().getMappedFile();
-        genBytes = pageInfo.getBuffer() == 0 &&
+        // Buffered pages keep the pre-encoded bytes in the JspWriterImpl
+        // buffer by reference.  The out of a tag file is a BodyContent
+        // whenever the tag is used in the body of another tag.
+        genBytes = !ctxt.isTagFile() &&
                    ctxt.getOptions().genStringAsByteArray();
+        genDirectBeanAccess = ctxt.getOptions().genDirectBeanAccess();
+        genELAsJava = ctxt.getOptions().genELAsJava();
+        serviceMethodSplitSize = ctxt.getOptions().getServiceMethodSplitSize();
         if (isPoolingEnabled) {
             tagHandlerPoolNames = new HashSet<String>();
         }
@@ -3953,6 +4328,95 @@ class Generator {
         }
     }
 
+    /*
+     * Returns true if the code generated for the node uses no local
+     * variables of _jspService other than request, response, out and the
+     * page context, and declares none that later code could use.
+     */
+    private static boolean isMovable(Node n) throws JasperException {
+        MovableVisitor visitor = new MovableVisitor();
+        n.accept(visitor);
+        return visitor.movable;
+    }
+
+    private static class MovableVisitor extends Node.Visitor {
+
+        private boolean movable = true;
+
+        public void visit(Node.Declaration n) {
+            movable = false;
+        }
+
+        public void visit(Node.Expression n) {
+            movable = false;
+        }
+
+        public void visit(Node.Scriptlet n) {
+            movable = false;
+        }
+
+        public void visit(Node.UseBean n) {
+            movable = false;
+        }
+
+        public void visit(Node.CustomTag n) {
+            // The Collector has already looked at the body
+            Node.ChildInfo ci = n.getChildInfo();
+            if (!ci.isScriptless() || ci.hasScriptingVars()) {
+                movable = false;
+            }
+        }
+
+        public void visit(Node.ParamAction n) throws JasperException {
+            check(n.getValue());
+            visitBody(n);
+        }
+
+        public void visit(Node.IncludeAction n) throws JasperException {
+            check(n.getPage());
+            visitBody(n);
+        }
+
+        public void visit(Node.ForwardAction n) throws JasperException {
+            check(n.getPage());
+            visitBody(n);
+        }
+
+        public void visit(Node.SetProperty n) throws JasperException {
+            check(n.getValue());
+            visitBody(n);
+        }
+
+        public void visit(Node.PlugIn n) throws JasperException {
+            check(n.getHeight());
+            check(n.getWidth());
+            visitBody(n);
+        }
+
+        public void visit(Node.JspElement n) throws JasperException {
+            check(n.getNameAttribute());
+            check(n.getJspAttributes());
+            visitBody(n);
+        }
+
+        public void visit(Node.UninterpretedTag n) throws JasperException {
+            check(n.getJspAttributes());
+            visitBody(n);
+        }
+
+        private void check(Node.JspAttribute[] attrs) {
+            for (int i = 0; attrs != null && i < attrs.length; i++) {
+                check(attrs[i]);
+            }
+        }
+
+        private void check(Node.JspAttribute attr) {
+            if (attr != null && attr.isExpression()) {
+                movable = false;
+            }
+        }
+    }
+
     /**
      * A class for generating codes to a buffer.  Included here are some
      * support for tracking source to Java lines mapping.
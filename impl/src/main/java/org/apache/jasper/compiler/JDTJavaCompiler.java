@@ -40,30 +40,30 @@
 
 package org.apache.jasper.compiler;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
 import java.io.UnsupportedEncodingException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
+import org.apache.jasper.Constants;
 import org.apache.jasper.JasperException;
 import org.apache.jasper.JspCompilationContext;
 
@@ -87,6 +87,16 @@ import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
  * context classloader, reducing dramatically disk access during 
  * the compilation process.
  *
+ * As with the JSR 199 compiler, the Java source is kept in memory and the
+ * bytecodes are stored in the JspRuntimeContext.  The Java and class files
+ * are only written to disk, in the background, when keepgenerated or
+ * saveBytecode is set.
+ *
+ * The class files of the web application and the container, and the
+ * package lookups, are cached per class loader across compilations.  The
+ * names found to be missing are looked up again after the
+ * modificationTestInterval, as a class may be added to the web application.
+ *
  * @author Cocoon2
  * @author Remy Maucherat
  * @author Kin-man Chung   Modified to implement JavaCompiler
@@ -94,11 +104,25 @@ import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
 
 public class JDTJavaCompiler implements JavaCompiler {
 
+    // Maximum number of class file bytes kept in each class cache
+    private static final int CLASS_CACHE_SIZE = Integer.getInteger(
+        "org.apache.jasper.compiler.JDTJavaCompiler.CLASS_CACHE_SIZE",
+        32*1024*1024).intValue();
+
+    // The class caches, one per web application class loader
+    private static final Map<ClassLoader, ClassCache> classCaches =
+        new WeakHashMap<ClassLoader, ClassCache>();
+
     private final Map settings = new HashMap();
     private JspCompilationContext ctxt;
     private ErrorDispatcher errDispatcher;
     private Logger log;
+    private JspRuntimeContext rtctxt;
     private String javaFileName;
+    private String javaEncoding;
+    private CharArrayWriter charArrayWriter;
+    private ArrayList<String> classNames;
+        // the classes generated for the page, including the inner classes
 
 
     public void init(JspCompilationContext ctxt,
@@ -106,6 +130,7 @@ public class JDTJavaCompiler implements JavaCompiler {
                      boolean suppressLogging) {
         this.errDispatcher = errDispatcher;
         this.ctxt = ctxt;
+        rtctxt = ctxt.getRuntimeContext();
         log = Logger.getLogger(JDTJavaCompiler.class.getName());
         if (suppressLogging) {
             log.setLevel(Level.OFF);
@@ -113,6 +138,7 @@ public class JDTJavaCompiler implements JavaCompiler {
     }
 
     public void release() {
+        classNames = null;
     }
 
     public void setExtdirs(String exts) {
@@ -125,28 +151,14 @@ public class JDTJavaCompiler implements JavaCompiler {
     }
 
     public long getClassLastModified() {
-        File classFile = new File(ctxt.getClassFileName());
-        return classFile.lastModified();
+        return rtctxt.getBytecodeBirthTime(ctxt.getFullClassName());
     }
 
-    public Writer getJavaWriter(String javaFileName,
-                                String javaEncoding)
-            throws JasperException {
-
+    public Writer getJavaWriter(String javaFileName, String javaEncoding) {
         this.javaFileName = javaFileName;
-
-        Writer writer = null;
-        try {
-            writer = new OutputStreamWriter(
-                        new FileOutputStream(javaFileName), javaEncoding);
-        } catch (UnsupportedEncodingException ex) {
-            errDispatcher.jspError("jsp.error.needAlternateJavaEncoding",
-                                   javaEncoding);
-        } catch (IOException ex) {
-            errDispatcher.jspError("jsp.error.unableToCreateOutputWriter",
-                                   javaFileName, ex);
-        }
-        return writer;
+        this.javaEncoding = javaEncoding;
+        this.charArrayWriter = new CharArrayWriter();
+        return this.charArrayWriter;
     }
 
     public void setDebug(boolean debug) {
@@ -209,13 +221,31 @@ public class JDTJavaCompiler implements JavaCompiler {
     }
 
     public void saveClassFile(String className, String classFileName) {
-        // class file are alwyas saved.
+        for (String c: classNames) {
+            String f = classFileName;
+            if (!className.equals(c)) {
+                // Compute inner class file name
+                f = f.substring(0, f.lastIndexOf(File.separator)+1) +
+                    c.substring(c.lastIndexOf('.')+1) + ".class";
+            }
+            rtctxt.saveBytecode(c, f);
+        }
     }
 
-    public void doJavaFile(boolean keep) {
-        if (!keep) {
-            File javaFile = new File(javaFileName);
-            javaFile.delete();
+    public void doJavaFile(boolean keep) throws JasperException {
+
+        if (! keep || charArrayWriter == null) {
+            charArrayWriter = null;
+            return;
+        }
+
+        try {
+            rtctxt.saveLater(javaFileName,
+                             charArrayWriter.toString().getBytes(javaEncoding));
+            charArrayWriter = null;
+        } catch (UnsupportedEncodingException ex) {
+            errDispatcher.jspError("jsp.error.needAlternateJavaEncoding",
+                                   javaEncoding);
         }
     }
 
@@ -223,25 +253,23 @@ public class JDTJavaCompiler implements JavaCompiler {
                                       final Node.Nodes pageNodes)
             throws JasperException {
 
-        final String sourceFile = ctxt.getServletJavaFileName();
-        final String outputDir =
-            ctxt.getOptions().getScratchDir().getAbsolutePath();
-        String packageName = ctxt.getServletPackageName();
+        final char[] source = charArrayWriter.toCharArray();
+        classNames = new ArrayList<String>();
 
         final ClassLoader classLoader = ctxt.getJspLoader();
-        String[] fileNames = new String[] {sourceFile};
-        String[] classNames = new String[] {targetClassName};
+        final ClassCache classCache = getClassCache(ctxt.getClassLoader());
+        final String basePackageName = ctxt.getBasePackageName();
+        final long missingTimeout =
+            ctxt.getOptions().getModificationTestInterval() * 1000L;
         final ArrayList<JavacErrorDetail> problemList =
                 new ArrayList<JavacErrorDetail>();
 
         class CompilationUnit implements ICompilationUnit {
 
             String className;
-            String sourceFile;
 
-            CompilationUnit(String sourceFile, String className) {
+            CompilationUnit(String className) {
                 this.className = className;
-                this.sourceFile = sourceFile;
             }
 
             public char[] getFileName() {
@@ -249,36 +277,7 @@ public class JDTJavaCompiler implements JavaCompiler {
             }
             
             public char[] getContents() {
-                char[] result = null;
-                Reader reader = null;
-                try {
-                    InputStreamReader isReader =
-                        new InputStreamReader(new FileInputStream(sourceFile),
-                                ctxt.getOptions().getJavaEncoding());
-                    reader = new BufferedReader(isReader);
-                    if (reader != null) {
-                        char[] chars = new char[8192];
-                        StringBuilder buf = new StringBuilder();
-                        int count;
-                        while ((count = reader.read(chars, 0, 
-                                                    chars.length)) > 0) {
-                            buf.append(chars, 0, count);
-                        }
-                        result = new char[buf.length()];
-                        buf.getChars(0, result.length, result, 0);
-                    }
-                } catch (IOException e) {
-                    log.log(Level.SEVERE, "Compilation error", e);
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException ioe) {
-                            // Ignore
-                        }
-                    }
-                }
-                return result;
+                return source;
             }
             
             public char[] getMainTypeName() {
@@ -332,59 +331,122 @@ public class JDTJavaCompiler implements JavaCompiler {
                 
                 private NameEnvironmentAnswer findType(String className) {
 
-                    InputStream is = null;
+                    if (className.equals(targetClassName)) {
+                        ICompilationUnit compilationUnit = 
+                            new CompilationUnit(className);
+                        return new NameEnvironmentAnswer(compilationUnit, null);
+                    }
                     try {
-                        if (className.equals(targetClassName)) {
-                            ICompilationUnit compilationUnit = 
-                                new CompilationUnit(sourceFile, className);
-                            return 
-                                new NameEnvironmentAnswer(compilationUnit, null);
+                        // The classes of the other pages and of the tag
+                        // files may only exist in memory
+                        byte[] classBytes = rtctxt.getBytecode(className);
+                        if (classBytes != null) {
+                            ClassFileReader classFileReader =
+                                new ClassFileReader(classBytes,
+                                                    className.toCharArray(),
+                                                    true);
+                            return
+                                new NameEnvironmentAnswer(classFileReader, null);
+                        }
+                        boolean generated =
+                            isGenerated(className, basePackageName);
+                        ClassFileReader classFileReader = null;
+                        if (!generated) {
+                            classFileReader = classCache.get(className);
                         }
-                        String resourceName = 
-                            className.replace('.', '/') + ".class";
-                        is = classLoader.getResourceAsStream(resourceName);
-                        if (is != null) {
-                            byte[] classBytes;
-                            byte[] buf = new byte[8192];
-                            ByteArrayOutputStream baos = 
-                                new ByteArrayOutputStream(buf.length);
-                            int count;
-                            while ((count = is.read(buf, 0, buf.length)) > 0) {
-                                baos.write(buf, 0, count);
+                        if (classFileReader == null) {
+                            if (!generated && classCache.isMissing(
+                                    className, missingTimeout)) {
+                                return null;
                             }
-                            baos.flush();
-                            classBytes = baos.toByteArray();
-                            char[] fileName = className.toCharArray();
-                            ClassFileReader classFileReader = 
-                                new ClassFileReader(classBytes, fileName, 
+                            classBytes = readClass(className);
+                            if (classBytes == null) {
+                                if (!generated) {
+                                    classCache.addMissing(className,
+                                                          missingTimeout);
+                                }
+                                return null;
+                            }
+                            // The reader is fully initialized, so that
+                            // concurrent compilations can share it
+                            classFileReader =
+                                new ClassFileReader(classBytes,
+                                                    className.toCharArray(),
                                                     true);
-                            return 
-                                new NameEnvironmentAnswer(classFileReader, null);
+                            if (!generated) {
+                                classCache.put(className, classFileReader,
+                                               classBytes.length);
+                            }
                         }
+                        return new NameEnvironmentAnswer(classFileReader, null);
                     } catch (IOException exc) {
                         log.log(Level.SEVERE, "Compilation error", exc);
                     } catch (org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException exc) {
                         log.log(Level.SEVERE, "Compilation error", exc);
+                    }
+                    return null;
+                }
+
+                private byte[] readClass(String className)
+                        throws IOException {
+
+                    String resourceName = 
+                        className.replace('.', '/') + ".class";
+                    InputStream is = classLoader.getResourceAsStream(resourceName);
+                    if (is == null) {
+                        return null;
+                    }
+                    try {
+                        byte[] buf = new byte[8192];
+                        ByteArrayOutputStream baos = 
+                            new ByteArrayOutputStream(buf.length);
+                        int count;
+                        while ((count = is.read(buf, 0, buf.length)) > 0) {
+                            baos.write(buf, 0, count);
+                        }
+                        return baos.toByteArray();
                     } finally {
-                        if (is != null) {
-                            try {
-                                is.close();
-                            } catch (IOException exc) {
-                                // Ignore
-                            }
+                        try {
+                            is.close();
+                        } catch (IOException exc) {
+                            // Ignore
                         }
                     }
-                    return null;
                 }
 
                 private boolean isPackage(String result) {
-                    if (result.equals(targetClassName)) {
+                    if (result.equals(targetClassName)
+                            || rtctxt.getBytecode(result) != null) {
                         return false;
                     }
+                    boolean generated = isGenerated(result, basePackageName);
+                    if (!generated) {
+                        if (classCache.isClass(result)) {
+                            return false;
+                        }
+                        if (classCache.isMissing(result, missingTimeout)) {
+                            return true;
+                        }
+                    }
                     String resourceName = result.replace('.', '/') + ".class";
                     InputStream is = 
                         classLoader.getResourceAsStream(resourceName);
-                    return is == null;
+                    boolean isPackage = is == null;
+                    if (is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException exc) {
+                            // Ignore
+                        }
+                    }
+                    if (!generated) {
+                        if (isPackage) {
+                            classCache.addMissing(result, missingTimeout);
+                        } else {
+                            classCache.addClass(result);
+                        }
+                    }
+                    return isPackage;
                 }
 
                 public boolean isPackage(char[][] parentPackageName, 
@@ -428,63 +490,51 @@ public class JDTJavaCompiler implements JavaCompiler {
         
         final ICompilerRequestor requestor = new ICompilerRequestor() {
                 public void acceptResult(CompilationResult result) {
-                    try {
-                        if (result.hasProblems()) {
-                            IProblem[] problems = safeGetProblems(result);
-                            for (int i = 0; i < problems.length; i++) {
-                                IProblem problem = problems[i];
-                                if (problem.isError()) {
-                                    String name = 
-                                        new String(problems[i].getOriginatingFileName());
-                                    try {
-                                        problemList.add(
-                                            ErrorDispatcher.createJavacError(
-                                                name,
-                                                pageNodes,
-                                                new StringBuilder(problem.getMessage()), 
-                                                problem.getSourceLineNumber()));
-                                    } catch (JasperException e) {
-                                        log.log(Level.SEVERE, "Error visiting node", e);
-                                    }
+                    if (result.hasProblems()) {
+                        IProblem[] problems = safeGetProblems(result);
+                        for (int i = 0; i < problems.length; i++) {
+                            IProblem problem = problems[i];
+                            if (problem.isError()) {
+                                String name = 
+                                    new String(problems[i].getOriginatingFileName());
+                                try {
+                                    problemList.add(
+                                        ErrorDispatcher.createJavacError(
+                                            name,
+                                            pageNodes,
+                                            new StringBuilder(problem.getMessage()), 
+                                            problem.getSourceLineNumber()));
+                                } catch (JasperException e) {
+                                    log.log(Level.SEVERE, "Error visiting node", e);
                                 }
                             }
                         }
-                        if (problemList.isEmpty()) {
-                            ClassFile[] classFiles = result.getClassFiles();
-                            for (int i = 0; i < classFiles.length; i++) {
-                                ClassFile classFile = classFiles[i];
-                                char[][] compoundName = 
-                                    classFile.getCompoundName();
-                                String className = "";
-                                String sep = "";
-                                for (int j = 0; 
-                                     j < compoundName.length; j++) {
-                                    className += sep;
-                                    className += new String(compoundName[j]);
-                                    sep = ".";
-                                }
-                                byte[] bytes = classFile.getBytes();
-                                String outFile = outputDir + "/" + 
-                                    className.replace('.', '/') + ".class";
-                                FileOutputStream fout = 
-                                    new FileOutputStream(outFile);
-                                BufferedOutputStream bos = 
-                                    new BufferedOutputStream(fout);
-                                bos.write(bytes);
-                                bos.close();
+                    }
+                    if (problemList.isEmpty()) {
+                        ClassFile[] classFiles = result.getClassFiles();
+                        for (int i = 0; i < classFiles.length; i++) {
+                            ClassFile classFile = classFiles[i];
+                            char[][] compoundName = 
+                                classFile.getCompoundName();
+                            String className = "";
+                            String sep = "";
+                            for (int j = 0; 
+                                 j < compoundName.length; j++) {
+                                className += sep;
+                                className += new String(compoundName[j]);
+                                sep = ".";
                             }
+                            classNames.add(className);
+                            rtctxt.setBytecode(className,
+                                               classFile.getBytes());
                         }
-                    } catch (IOException exc) {
-                        log.log(Level.SEVERE, "Compilation error", exc);
                     }
                 }
             };
 
-        ICompilationUnit[] compilationUnits = 
-            new ICompilationUnit[classNames.length];
-        for (int i = 0; i < compilationUnits.length; i++) {
-            compilationUnits[i] = new CompilationUnit(fileNames[i], classNames[i]);
-        }
+        ICompilationUnit[] compilationUnits = {
+            new CompilationUnit(targetClassName)
+        };
 
         Compiler compiler = new Compiler(env,
                                          policy,
@@ -532,4 +582,123 @@ public class JDTJavaCompiler implements JavaCompiler {
             }
         }
     }
+
+    /*
+     * The classes of the generated pages and tag files change as they are
+     * recompiled, and are never cached.  The pages may be generated into
+     * another package than the tag files, see JspC -p.
+     */
+    private static boolean isGenerated(String name, String basePackageName) {
+        return isInPackage(name, Constants.JSP_PACKAGE_NAME)
+            || isInPackage(name, basePackageName);
+    }
+
+    private static boolean isInPackage(String name, String packageName) {
+        return name.startsWith(packageName)
+            && (name.length() == packageName.length()
+                || name.charAt(packageName.length()) == '.');
+    }
+
+    private static ClassCache getClassCache(ClassLoader loader) {
+        synchronized (classCaches) {
+            ClassCache classCache = classCaches.get(loader);
+            if (classCache == null) {
+                classCache = new ClassCache(CLASS_CACHE_SIZE);
+                classCaches.put(loader, classCache);
+            }
+            return classCache;
+        }
+    }
+
+    /**
+     * The class files read from a web application class loader, and the
+     * names found to be classes or to be missing, kept across compilations
+     * so that the JDT name environment need not read the same jars again
+     * for every page.  A class that is missing may be added to the web
+     * application later, so the missing names expire after a timeout; with
+     * a timeout of 0 they are not cached.  The cached class files are
+     * discarded, least recently used first, when their total size exceeds
+     * the limit.
+     */
+    private static final class ClassCache {
+
+        private static final int MAX_CLASS_NAMES = 10000;
+
+        static final class Entry {
+            final ClassFileReader reader;
+            final int size;
+
+            Entry(ClassFileReader reader, int size) {
+                this.reader = reader;
+                this.size = size;
+            }
+        }
+
+        private final int maxSize;
+        private int size;
+        private final LinkedHashMap<String, Entry> classes =
+            new LinkedHashMap<String, Entry>(256, 0.75f, true);
+        private final Set<String> classNames = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+        // The missing class names, with the time they were looked up
+        private final ConcurrentHashMap<String, Long> missingNames =
+            new ConcurrentHashMap<String, Long>();
+
+        ClassCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized ClassFileReader get(String className) {
+            Entry entry = classes.get(className);
+            return (entry == null)? null: entry.reader;
+        }
+
+        synchronized void put(String className, ClassFileReader reader,
+                              int classSize) {
+            Entry old = classes.put(className, new Entry(reader, classSize));
+            if (old != null) {
+                size -= old.size;
+            }
+            size += classSize;
+            Iterator<Entry> iter = classes.values().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                size -= iter.next().size;
+                iter.remove();
+            }
+        }
+
+        boolean isClass(String name) {
+            return classNames.contains(name);
+        }
+
+        void addClass(String name) {
+            if (classNames.size() >= MAX_CLASS_NAMES) {
+                classNames.clear();
+            }
+            classNames.add(name);
+        }
+
+        boolean isMissing(String name, long timeout) {
+            Long time = missingNames.get(name);
+            if (time == null) {
+                return false;
+            }
+            if (System.currentTimeMillis() - time.longValue() < timeout) {
+                return true;
+            }
+            missingNames.remove(name, time);
+            return false;
+        }
+
+        void addMissing(String name, long timeout) {
+            if (timeout <= 0) {
+                return;
+            }
+            if (missingNames.size() >= MAX_CLASS_NAMES) {
+                missingNames.clear();
+            }
+            missingNames.put(name,
+                             Long.valueOf(System.currentTimeMillis()));
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Keeps the StandardJavaFileManagers of the JSR 199 compilations of a web
+ * application, so that javac does not open and index the jar files on the
+ * classpath again for each page.
+ *
+ * A file manager is used by one compilation at a time.  The idle file
+ * managers are all for the same classpath and compiler options; when a
+ * compilation asks for different ones, for example because the classpath
+ * of the web application changed, the idle file managers are closed.
+ * A file manager caches the contents of the jar files it opened, so the
+ * size and the modification time of each classpath entry are part of the
+ * key, and a jar file replaced in place is not read from a stale index.
+ */
+final class JavaFileManagerCache {
+
+    private static final Logger log =
+        Logger.getLogger(JavaFileManagerCache.class.getName());
+
+    private static final int MAX_IDLE = Integer.getInteger(
+        "org.apache.jasper.compiler.JavaFileManagerCache.MAX_IDLE", 4);
+
+    private JavaCompiler javac;
+    private List<Object> key;
+    private final ArrayList<StandardJavaFileManager> idle =
+        new ArrayList<StandardJavaFileManager>();
+
+    /**
+     * Returns the system Java compiler, or null if there is none.
+     */
+    synchronized JavaCompiler getJavaCompiler() {
+        if (javac == null) {
+            javac = ToolProvider.getSystemJavaCompiler();
+        }
+        return javac;
+    }
+
+    /**
+     * Returns a file manager for the given classpath and options, which
+     * must be given back with {@link #release} after the compilation.
+     */
+    synchronized StandardJavaFileManager get(List<File> cpath,
+                                             List<String> options) {
+        List<Object> k = createKey(cpath, options);
+        if (!k.equals(key)) {
+            closeIdle();
+            key = k;
+        }
+        if (!idle.isEmpty()) {
+            return idle.remove(idle.size() - 1);
+        }
+        StandardJavaFileManager fileManager =
+            getJavaCompiler().getStandardFileManager(null, null, null);
+        try {
+            fileManager.setLocation(StandardLocation.CLASS_PATH, cpath);
+        } catch (IOException e) {
+            log.log(Level.WARNING, Localizer.getMessage(
+                "jsp.warning.compilerClasspath", String.valueOf(cpath)), e);
+        }
+        return fileManager;
+    }
+
+    /**
+     * Gives back a file manager obtained with {@link #get}.
+     */
+    synchronized void release(List<File> cpath, List<String> options,
+                              StandardJavaFileManager fileManager) {
+        if (idle.size() < MAX_IDLE
+                && createKey(cpath, options).equals(key)) {
+            idle.add(fileManager);
+        } else {
+            close(fileManager);
+        }
+    }
+
+    /**
+     * Closes the idle file managers.
+     */
+    synchronized void close() {
+        closeIdle();
+        key = null;
+    }
+
+    private void closeIdle() {
+        for (StandardJavaFileManager fileManager: idle) {
+            close(fileManager);
+        }
+        idle.clear();
+    }
+
+    private static void close(StandardJavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static List<Object> createKey(List<File> cpath,
+                                          List<String> options) {
+        List<Object> entries = null;
+        if (cpath != null) {
+            entries = new ArrayList<Object>(cpath.size() * 3);
+            for (File file: cpath) {
+                entries.add(file);
+                entries.add(Long.valueOf(file.length()));
+                entries.add(Long.valueOf(file.lastModified()));
+            }
+        }
+        return Arrays.<Object>asList(entries, new ArrayList<String>(options));
+    }
+}
@@ -64,19 +64,46 @@ import java.io.FilePermission;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.CodeSource;
 import java.security.cert.Certificate;
 import java.security.PermissionCollection;
 import java.security.Policy;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -97,7 +124,9 @@ import org.apache.jasper.servlet.JspServletWrapper;
  *
  * A background thread periodically checks the files a JSP page
  * is dependent upon.  If a dpendent file changes the JSP page
- * which included it is recompiled.
+ * which included it is recompiled.  With the watchChanges option,
+ * the thread instead waits for file system events on the JSP pages
+ * and their dependants, and only checks the pages affected by them.
  *
  * Only used if a web application context is a directory.
  *
@@ -173,6 +202,8 @@ public final class JspRuntimeContext implements Runnable {
         bytecodes = new ConcurrentHashMap<String, byte[]>(hashSize);
         bytecodeBirthTimes = new ConcurrentHashMap<String, Long>(hashSize);
         packageMap = new  ConcurrentHashMap<String, Map<String, JavaFileObject>>();
+        resourceStamps = new ConcurrentHashMap<String, ResourceStamp>(hashSize);
+        jarEntryTimes = new ConcurrentHashMap<String, JarEntryTimes>();
 
 	if (log.isLoggable(Level.FINEST)) {
             ClassLoader parentClassLoader = getParentClassLoader();
@@ -240,6 +271,18 @@ public final class JspRuntimeContext implements Runnable {
      */
     private Map<String, Map<String, JavaFileObject>> packageMap;
 
+    /**
+     * Maps resource paths of page dependencies to their last known
+     * modification time, shared by all the pages in this application.
+     */
+    private Map<String, ResourceStamp> resourceStamps;
+
+    /**
+     * Maps jar file paths to the modification times of their entries,
+     * as read from the jar's central directory.
+     */
+    private Map<String, JarEntryTimes> jarEntryTimes;
+
     /**
      * The background thread.
      */
@@ -257,6 +300,35 @@ public final class JspRuntimeContext implements Runnable {
      */
     private String threadName = "JspRuntimeContext";
 
+    /**
+     * The watch service used by the background thread when the
+     * watchChanges option is set, and the directories registered with it.
+     */
+    private WatchService watcher;
+    private Set<Path> watchedDirs = new HashSet<Path>();
+
+    /**
+     * The executor used to recompile the JSP files, when more than one
+     * background compile thread is configured.
+     */
+    private ExecutorService compileExecutor;
+
+    /**
+     * The generated files waiting to be written to disk by the file
+     * writer thread, by file name.  Only the latest content of a file
+     * is written.
+     */
+    private final Map<String, byte[]> pendingFiles =
+        new ConcurrentHashMap<String, byte[]>();
+    private ExecutorService fileWriter;
+    private boolean fileWriterStopped;
+
+    /**
+     * The file managers kept for the JSR 199 compilations.
+     */
+    private final JavaFileManagerCache javaFileManagers =
+        new JavaFileManagerCache();
+
     // ------------------------------------------------------ Public Methods
 
     /**
@@ -339,6 +411,8 @@ public final class JspRuntimeContext implements Runnable {
     public void destroy() {
 
         threadStop();
+        stopFileWriter();
+        javaFileManagers.close();
 
         for (JspServletWrapper jsw: jsps.values()) {
             jsw.destroy();
@@ -428,32 +502,241 @@ public final class JspRuntimeContext implements Runnable {
     }
 
     /**
-     * Save the bytecode for a class to disk.
+     * Get the file managers kept for the JSR 199 compilations of this
+     * web application.
+     */
+    JavaFileManagerCache getJavaFileManagerCache() {
+        return javaFileManagers;
+    }
+
+    /**
+     * Save the bytecode for a class to disk.  The file is written in the
+     * background, see {@link #saveLater}.
      */
     public void saveBytecode(String className, String classFileName) {
         byte[] bytecode = getBytecode(className);
         if (bytecode != null) {
+            saveLater(classFileName, bytecode);
+        }
+    }
+
+    /**
+     * Write a generated file to disk in the background, so that the
+     * compilation does not wait for the disk.  If the file is saved again
+     * before it is written, only the latest content is written.  All the
+     * pending files are written when this context is destroyed, and the
+     * files saved after that are not written.
+     *
+     * @param fileName The name of the file
+     * @param data The content of the file
+     */
+    public void saveLater(final String fileName, byte[] data) {
+        synchronized (pendingFiles) {
+            if (fileWriterStopped) {
+                log.warning(Localizer.getMessage(
+                    "jsp.warning.saveAfterDestroy", fileName));
+                return;
+            }
+            if (pendingFiles.put(fileName, data) != null) {
+                // Not written yet, the scheduled write will use the new data
+                return;
+            }
+            if (fileWriter == null) {
+                final ThreadFactory defaultFactory =
+                    Executors.defaultThreadFactory();
+                fileWriter = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = defaultFactory.newThread(r);
+                            t.setName(threadName + "-writer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            }
+            fileWriter.execute(new Runnable() {
+                public void run() {
+                    writeFile(fileName);
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancel the writing of a file saved with {@link #saveLater}, if it
+     * has not been written yet.
+     *
+     * @param fileName The name of the file
+     */
+    public void cancelSave(String fileName) {
+        pendingFiles.remove(fileName);
+    }
+
+    /**
+     * Cancel the writing of a class file saved with {@link #saveLater},
+     * and of the class files of its inner classes, if they have not been
+     * written yet.
+     *
+     * @param classFileName The name of the class file of the outer class
+     */
+    public void cancelClassSave(String classFileName) {
+        pendingFiles.remove(classFileName);
+        if (pendingFiles.isEmpty() || !classFileName.endsWith(".class")) {
+            return;
+        }
+        String innerPrefix = classFileName.substring(
+            0, classFileName.length() - ".class".length()) + "$";
+        for (String fileName: pendingFiles.keySet()) {
+            if (fileName.startsWith(innerPrefix)
+                    && fileName.endsWith(".class")) {
+                pendingFiles.remove(fileName);
+            }
+        }
+    }
+
+    private void writeFile(String fileName) {
+        byte[] data = pendingFiles.remove(fileName);
+        if (data == null) {
+            return;
+        }
+        // The file is replaced at once, so that a class is never loaded
+        // from a partly written file
+        File file = new File(fileName);
+        File tmpFile = new File(fileName + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
             try {
-                FileOutputStream fos = new FileOutputStream(classFileName);
-                fos.write(bytecode);
+                fos.write(data);
+            } finally {
                 fos.close();
-            } catch (IOException ex) {
-                context.log("Error in saving bytecode for " + className +
-                    " to " + classFileName, ex);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            tmpFile.delete();
+            context.log("Error in saving " + fileName, ex);
+        }
+    }
+
+    /*
+     * Writes the pending files and stops the file writer thread.  No file
+     * is saved after that.
+     */
+    private void stopFileWriter() {
+        ExecutorService writer;
+        synchronized (pendingFiles) {
+            writer = fileWriter;
+            fileWriter = null;
+            fileWriterStopped = true;
+        }
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Get the last modification time of a resource a page depends on.
+     * The result is shared by all pages and is rechecked at most once per
+     * modification test interval.  Times of entries in jar files on the
+     * file system are read from the jar's central directory, which is
+     * only read again when the jar file itself changes.
+     *
+     * @param path The resource path, as recorded in the page's dependants
+     * @param ctxt The compilation context used to resolve the path
+     * @return The last modification time, or -1 if the resource does not
+     *         exist
+     */
+    public long getResourceLastModified(String path,
+                                        JspCompilationContext ctxt)
+            throws IOException {
+
+        // Paths under /META-INF/ are relative to the jar of the tag file
+        // being compiled, and cannot be shared between pages.
+        boolean shared = !path.startsWith("/META-INF/");
+        long now = System.currentTimeMillis();
+        if (shared) {
+            ResourceStamp stamp = resourceStamps.get(path);
+            if (stamp != null && stamp.checked
+                    + options.getModificationTestInterval() * 1000L > now) {
+                return stamp.lastModified;
+            }
+        }
+
+        URL url = ctxt.getResource(path);
+        long lastModified = (url == null)? -1: getLastModified(url);
+        if (shared) {
+            if (lastModified < 0) {
+                resourceStamps.remove(path);
+            } else {
+                resourceStamps.put(path,
+                                   new ResourceStamp(lastModified, now));
             }
         }
+        return lastModified;
     }
 
 
     // -------------------------------------------------------- Private Methods
 
 
+    private long getLastModified(URL url) throws IOException {
+        if ("jar".equals(url.getProtocol())) {
+            String spec = url.getFile();
+            int sep = spec.indexOf("!/");
+            if (sep > 0 && spec.startsWith("file:")) {
+                String jarPath = URLDecoder.decode(
+                    new URL(spec.substring(0, sep)).getFile(), "UTF-8");
+                return getJarEntryTime(new File(jarPath),
+                                       spec.substring(sep + 2));
+            }
+        }
+
+        URLConnection uc = url.openConnection();
+        long lastModified;
+        if (uc instanceof JarURLConnection) {
+            lastModified = ((JarURLConnection) uc).getJarEntry().getTime();
+        } else {
+            lastModified = uc.getLastModified();
+        }
+        uc.getInputStream().close();
+        return lastModified;
+    }
+
+    private long getJarEntryTime(File jar, String entryName)
+            throws IOException {
+        String key = jar.getPath();
+        long jarLastModified = jar.lastModified();
+        JarEntryTimes times = jarEntryTimes.get(key);
+        if (times == null || times.jarLastModified != jarLastModified) {
+            times = new JarEntryTimes(jar, jarLastModified);
+            jarEntryTimes.put(key, times);
+        }
+        Long time = times.entryTimes.get(entryName);
+        return (time != null)? time.longValue(): -1;
+    }
+
     /**
      * Method used by background thread to check the JSP dependencies
      * registered with this class for JSP's.
+     *
+     * The pages that received the most requests since the previous check
+     * are checked first, so that they are the first to be reloaded.  With
+     * the backgroundCompileThreads option, the pages are checked, and
+     * recompiled, concurrently on the compile executor.
      */
-    private void checkCompile() {
-        for (JspServletWrapper jsw: jsps.values()) {
+    private void checkCompile(Collection<JspServletWrapper> wrappers) {
+        List<JspServletWrapper> pages =
+            new ArrayList<JspServletWrapper>(wrappers.size());
+        final Map<JspServletWrapper, Integer> requestCounts =
+            new HashMap<JspServletWrapper, Integer>();
+        for (JspServletWrapper jsw: wrappers) {
             if (jsw.isTagFile()) {
                 // Skip tag files in background compiliations, since modified
                 // tag files will be recompiled anyway when their client JSP
@@ -461,24 +744,225 @@ public final class JspRuntimeContext implements Runnable {
                 // tag files and their clients are not modified simultaneously.
                 continue;
             }
+            pages.add(jsw);
+            requestCounts.put(jsw, Integer.valueOf(jsw.takeRequestCount()));
+        }
+        Collections.sort(pages, new Comparator<JspServletWrapper>() {
+            public int compare(JspServletWrapper a, JspServletWrapper b) {
+                return requestCounts.get(b).compareTo(requestCounts.get(a));
+            }
+        });
+
+        if (compileExecutor == null) {
+            for (JspServletWrapper jsw: pages) {
+                checkCompile(jsw, requestCounts.get(jsw).intValue() > 0);
+            }
+            return;
+        }
 
-            JspCompilationContext ctxt = jsw.getJspEngineContext();
-            // JspServletWrapper also synchronizes on this when
-            // it detects it has to do a reload
-            synchronized(jsw) {
-                try {
-                    ctxt.compile();
-                } catch (FileNotFoundException ex) {
-                    ctxt.incrementRemoved();
-                } catch (Throwable t) {
-                    jsw.getServletContext().log(
-                        Localizer.getMessage("jsp.error.background.compile"),
-                        t);
+        List<Future<?>> results = new ArrayList<Future<?>>(pages.size());
+        for (final JspServletWrapper jsw: pages) {
+            final boolean requested = requestCounts.get(jsw).intValue() > 0;
+            results.add(compileExecutor.submit(new Runnable() {
+                public void run() {
+                    checkCompile(jsw, requested);
                 }
+            }));
+        }
+        // Wait for this round to complete, so that a page is never
+        // queued twice
+        for (Future<?> result: results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.log(Level.SEVERE,
+                        Localizer.getMessage("jsp.error.recompile"),
+                        e.getCause());
             }
         }
     }
 
+    /**
+     * Recompiles the given page if it is outdated.  If the page was
+     * requested recently, the new servlet is also loaded here, so that
+     * it is ready before the next request for the page.
+     */
+    private void checkCompile(JspServletWrapper jsw, boolean load) {
+        JspCompilationContext ctxt = jsw.getJspEngineContext();
+        // JspServletWrapper also synchronizes on this when
+        // it detects it has to do a reload
+        synchronized(jsw) {
+            try {
+                ctxt.compile();
+            } catch (FileNotFoundException ex) {
+                ctxt.incrementRemoved();
+                return;
+            } catch (Throwable t) {
+                jsw.getServletContext().log(
+                    Localizer.getMessage("jsp.error.background.compile"),
+                    t);
+                return;
+            }
+        }
+        if (load && jsw.isServletLoaded()) {
+            try {
+                jsw.getServlet();
+            } catch (Throwable t) {
+                jsw.getServletContext().log(
+                    Localizer.getMessage("jsp.error.background.compile"),
+                    t);
+            }
+        }
+    }
+
+    /**
+     * Used by the background thread when the watchChanges option is set.
+     * Waits up to checkInterval seconds for file system events, and
+     * checks the JSP pages that depend on the files that changed.
+     */
+    private void watchCompile() throws IOException {
+
+        Map<Path, Set<String>> index = indexDependants();
+
+        WatchKey key;
+        try {
+            key = watcher.poll(options.getCheckInterval(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        Set<String> changed = new HashSet<String>();
+        boolean overflow = false;
+        while (key != null) {
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event: key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+                Set<String> uris =
+                    index.get(dir.resolve((Path) event.context()));
+                if (uris != null) {
+                    changed.addAll(uris);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(dir);
+            }
+            key = watcher.poll();
+        }
+
+        if (overflow) {
+            // Events were lost, check everything
+            checkCompile(jsps.values());
+            return;
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        List<JspServletWrapper> wrappers =
+            new ArrayList<JspServletWrapper>(changed.size());
+        for (String uri: changed) {
+            JspServletWrapper jsw = jsps.get(uri);
+            if (jsw != null) {
+                wrappers.add(jsw);
+            }
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Files changed, checking " + changed);
+        }
+        checkCompile(wrappers);
+    }
+
+    /**
+     * Maps the files of the loaded JSP pages, and of the files they
+     * depend on, to the URIs of the pages, and registers the directories
+     * of those files with the watch service.  The map is rebuilt every
+     * time, as the dependants of a page change when it is recompiled.
+     */
+    private Map<Path, Set<String>> indexDependants() {
+
+        Map<Path, Set<String>> index = new HashMap<Path, Set<String>>();
+        for (Map.Entry<String, JspServletWrapper> entry: jsps.entrySet()) {
+            JspServletWrapper jsw = entry.getValue();
+            if (jsw.isTagFile()) {
+                // Tag files are dependants of the pages that use them
+                continue;
+            }
+            String uri = entry.getKey();
+            addToIndex(index, uri, uri);
+            // Do not cause the servlet to be loaded just to get its
+            // dependants
+            if (jsw.isServletLoaded()) {
+                List<String> depends = jsw.getDependants();
+                if (depends != null) {
+                    for (String include: depends) {
+                        addToIndex(index, include, uri);
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private void addToIndex(Map<Path, Set<String>> index, String resource,
+                            String uri) {
+
+        Path file = getWatchPath(resource);
+        if (file == null || file.getParent() == null) {
+            return;
+        }
+        Path dir = file.getParent();
+        if (!watchedDirs.contains(dir)) {
+            try {
+                dir.register(watcher,
+                             StandardWatchEventKinds.ENTRY_CREATE,
+                             StandardWatchEventKinds.ENTRY_DELETE,
+                             StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.add(dir);
+            } catch (IOException e) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.fine("Cannot watch " + dir + ": " + e);
+                }
+                return;
+            }
+        }
+        Set<String> uris = index.get(file);
+        if (uris == null) {
+            uris = new HashSet<String>();
+            index.put(file, uris);
+        }
+        uris.add(uri);
+    }
+
+    /**
+     * Gets the file to watch for the given resource path, which may also
+     * be a file: URL, or a jar: URL whose jar file is watched.
+     *
+     * @return The file, or null if the resource is not a local file
+     */
+    private Path getWatchPath(String resource) {
+
+        String path = resource;
+        if (path.startsWith("jar:")) {
+            int sep = path.indexOf('!');
+            path = path.substring(4, (sep > 0)? sep: path.length());
+        }
+        try {
+            if (path.startsWith("file:")) {
+                return Paths.get(new URL(path).toURI());
+            }
+            String realPath = context.getRealPath(path);
+            return (realPath != null)? Paths.get(realPath): null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * The classpath that is passed off to the Java compiler.
      */
@@ -632,6 +1116,21 @@ public final class JspRuntimeContext implements Runnable {
             return;
         }
 
+        int compileThreads = options.getBackgroundCompileThreads();
+        if (compileThreads > 1) {
+            final ThreadFactory defaultFactory =
+                Executors.defaultThreadFactory();
+            compileExecutor = Executors.newFixedThreadPool(compileThreads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = defaultFactory.newThread(r);
+                        t.setName(threadName + "-" + t.getName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
         // Start the background thread
         threadDone = false;
         thread = new Thread(this, threadName);
@@ -660,6 +1159,11 @@ public final class JspRuntimeContext implements Runnable {
         }
         
         thread = null;
+
+        if (compileExecutor != null) {
+            compileExecutor.shutdownNow();
+            compileExecutor = null;
+        }
         
     }
 
@@ -686,24 +1190,88 @@ public final class JspRuntimeContext implements Runnable {
      * included by a JSP and flags that a recompile is required.
      */ 
     public void run() {
+
+        if (options.getWatchChanges()) {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                log.log(Level.WARNING, Localizer.getMessage(
+                            "jsp.warning.watchChanges",
+                            String.valueOf(options.getCheckInterval())), e);
+            }
+        }
         
         // Loop until the termination semaphore is set
         while (!threadDone) {
 
-            // Wait for our check interval
-            threadSleep();
+            // Wait for our check interval, unless waiting for file changes
+            if (watcher == null) {
+                threadSleep();
+            }
 
             // Check for included files which are newer than the
             // JSP which uses them.
             try {
-                checkCompile();
+                if (watcher != null) {
+                    watchCompile();
+                } else {
+                    checkCompile(jsps.values());
+                }
+            } catch (ClosedWatchServiceException e) {
+                break;
             } catch (Throwable t) {
                 t.printStackTrace();
                 log.log(Level.SEVERE, Localizer
                         .getMessage("jsp.error.recompile"), t);
             }
         }
+
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            watcher = null;
+            watchedDirs.clear();
+        }
         
     }
 
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    private static final class ResourceStamp {
+
+        final long lastModified;
+        final long checked;
+
+        ResourceStamp(long lastModified, long checked) {
+            this.lastModified = lastModified;
+            this.checked = checked;
+        }
+    }
+
+    private static final class JarEntryTimes {
+
+        final long jarLastModified;
+        final Map<String, Long> entryTimes = new HashMap<String, Long>();
+
+        JarEntryTimes(File jar, long jarLastModified) throws IOException {
+            this.jarLastModified = jarLastModified;
+            ZipFile zip = new ZipFile(jar);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    entryTimes.put(entry.getName(),
+                                   Long.valueOf(entry.getTime()));
+                }
+            } finally {
+                zip.close();
+            }
+        }
+    }
 }
@@ -105,7 +105,13 @@ public class JspUtil {
     private static final String OPEN_EXPR_XML  = "%=";
     private static final String CLOSE_EXPR_XML = "%";
 
-    private static int tempSequenceNumber = 0;
+    // Per thread, so that pages may be generated concurrently (jspc -threads)
+    private static final ThreadLocal<int[]> tempSequenceNumber =
+        new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
     private static ExpressionFactory expFactory; 
 
     private static final String javaKeywords[] = {
@@ -528,6 +534,26 @@ public class JspUtil {
                                          String expectedReturnType,
                                          String[] expectedParamTypes
                                          ) 
+    {
+        return interpreterCall(isTagFile, expression, expectedType, fnmapvar,
+                               expectedDeferredType, expectedReturnType,
+                               expectedParamTypes, false);
+    }
+
+    /**
+     * Produces a String representing a call to the EL interpreter.  If
+     * translate is true and the expression is simple enough for
+     * ELTranslator, the call is preceded by the Java translation of the
+     * expression, which is used when ELRuntimeLibrary.isDirect allows it.
+     */
+    public static String interpreterCall(boolean isTagFile,
+					 String expression,
+                                         Class expectedType,
+                                         String fnmapvar,
+                                         String expectedDeferredType,
+                                         String expectedReturnType,
+                                         String[] expectedParamTypes,
+                                         boolean translate)
     {
         /*
          * Determine which context object to use.
@@ -616,14 +642,27 @@ public class JspUtil {
  
 	targetType = toJavaSourceType(targetType);
 
-	StringBuilder call = new StringBuilder(
-             "(" + returnType + ") "
-               + "org.apache.jasper.runtime.PageContextImpl.evaluateExpression"
+	String evaluation =
+               "org.apache.jasper.runtime.PageContextImpl.evaluateExpression"
                + "(" + Generator.quote(expression) + ", "
                +       targetType + ".class, "
 	       +       "(PageContext)" + jspCtxt 
                +       ", " + fnmapvar
-               + ")");
+               + ")";
+
+        String pageContext = "((PageContext)" + jspCtxt + ")";
+        String java = translate
+            ? ELTranslator.translate(expression, pageContext) : null;
+        if (java != null) {
+            evaluation = "(org.apache.jasper.runtime.ELRuntimeLibrary.isDirect("
+               + pageContext + ") ? "
+               + "org.apache.jasper.runtime.ELRuntimeLibrary.coerce("
+               + pageContext + ", " + java + ", " + targetType + ".class) : "
+               + evaluation + ")";
+        }
+
+	StringBuilder call = new StringBuilder(
+             "(" + returnType + ") " + evaluation);
  
 	/*
          * Add the primitive converter method if we need to.
@@ -667,19 +706,18 @@ public class JspUtil {
     }
 
     /**
-     * Resets the temporary variable name.
-     * (not thread-safe)
+     * Resets the temporary variable name for the current thread.
      */
     public static void resetTemporaryVariableName() {
-        tempSequenceNumber = 0;
+        tempSequenceNumber.get()[0] = 0;
     }
 
     /**
-     * Generates a new temporary variable name.
-     * (not thread-safe)
+     * Generates a new temporary variable name for the current thread.
      */
     public static String nextTemporaryVariableName() {
-        return Constants.TEMP_VARIABLE_NAME_PREFIX + (tempSequenceNumber++);
+        return Constants.TEMP_VARIABLE_NAME_PREFIX +
+            (tempSequenceNumber.get()[0]++);
     }
 
     public static String coerceToPrimitiveBoolean(String s,
@@ -43,7 +43,6 @@ package org.apache.jasper.compiler;
 import javax.tools.DiagnosticCollector;
 import javax.tools.Diagnostic;
 import javax.tools.FileObject;
-import javax.tools.ToolProvider;
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileManager.Location;
 import javax.tools.JavaFileObject;
@@ -71,8 +70,10 @@ import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.jasper.JasperException;
 import org.apache.jasper.Constants;
@@ -200,56 +201,43 @@ public class Jsr199JavaCompiler implements JavaCompiler {
     public JavacErrorDetail[] compile(String className, Node.Nodes pageNodes)
             throws JasperException {
 
-        final String source = charArrayWriter.toString();
         classFiles = new ArrayList<BytecodeFile>();
 
-        javax.tools.JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        JavaFileManagerCache fileManagers = rtctxt.getJavaFileManagerCache();
+        javax.tools.JavaCompiler javac = fileManagers.getJavaCompiler();
         if (javac == null) {
             errDispatcher.jspError("jsp.error.nojdk");
         }
 
         DiagnosticCollector<JavaFileObject> diagnostics =
             new DiagnosticCollector<JavaFileObject>();
-        StandardJavaFileManager stdFileManager =
-                    javac.getStandardFileManager(diagnostics, null, null);
-
-        String name = className.substring(className.lastIndexOf('.')+1);
 
         JavaFileObject[] sourceFiles = {
-            new SimpleJavaFileObject(
-                    URI.create("string:///" + name.replace('.','/') +
-                               Kind.SOURCE.extension),
-                    Kind.SOURCE) {
-                public CharSequence getCharContent(boolean ignore) {
-                    return source;
-                }
-            }
+            new SourceFile(this, className, charArrayWriter.toString())
         };
 
+        // The file manager is kept for the next compilations, and is
+        // not closed
+        StandardJavaFileManager stdFileManager =
+            fileManagers.get(this.cpath, options);
+        boolean compiled;
         try {
-            stdFileManager.setLocation(StandardLocation.CLASS_PATH, this.cpath);
-        } catch (IOException e) {
-        }
-
-        JavaFileManager javaFileManager = getJavaFileManager(stdFileManager);
-        javax.tools.JavaCompiler.CompilationTask ct =
-            javac.getTask(null,
-                          javaFileManager,
-                          diagnostics,
-                          options,
-                          null, 
-                          Arrays.asList(sourceFiles));
-
-        try {
-            javaFileManager.close();
-        } catch (IOException ex) {
+            JavaFileManager javaFileManager =
+                getJavaFileManager(stdFileManager);
+            javax.tools.JavaCompiler.CompilationTask ct =
+                javac.getTask(null,
+                              javaFileManager,
+                              diagnostics,
+                              options,
+                              null, 
+                              Arrays.asList(sourceFiles));
+            compiled = ct.call();
+        } finally {
+            fileManagers.release(this.cpath, options, stdFileManager);
         }
 
-        if (ct.call()) {
-            for (BytecodeFile bytecodeFile: classFiles) {
-                rtctxt.setBytecode(bytecodeFile.getClassName(),
-                                   bytecodeFile.getBytecode());
-            }
+        if (compiled) {
+            setBytecodes();
             return null;
         }
 
@@ -266,6 +254,181 @@ public class Jsr199JavaCompiler implements JavaCompiler {
         return problems.toArray(new JavacErrorDetail[0]);
     }
 
+    /**
+     * Compiles the Java sources of several pages with a single compilation
+     * task.  The options and classpath of the first compiler are used for
+     * the whole batch, see {@link #isCompatible}.
+     *
+     * javac does not generate any class when one of the sources has
+     * errors, so the pages with errors are taken out of the batch and the
+     * rest is compiled again.
+     *
+     * @return The errors for each of the pages, in the order of the given
+     * compilers, with null entries for the pages that compiled
+     */
+    static JavacErrorDetail[][] compile(List<Jsr199JavaCompiler> compilers,
+                                        List<Node.Nodes> pageNodes)
+            throws JasperException {
+
+        JavacErrorDetail[][] errors = new JavacErrorDetail[compilers.size()][];
+        Jsr199JavaCompiler first = compilers.get(0);
+
+        JavaFileManagerCache fileManagers =
+            first.rtctxt.getJavaFileManagerCache();
+        javax.tools.JavaCompiler javac = fileManagers.getJavaCompiler();
+        if (javac == null) {
+            first.errDispatcher.jspError("jsp.error.nojdk");
+        }
+
+        ArrayList<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < compilers.size(); i++) {
+            pending.add(Integer.valueOf(i));
+        }
+
+        while (!pending.isEmpty()) {
+            DiagnosticCollector<JavaFileObject> diagnostics =
+                new DiagnosticCollector<JavaFileObject>();
+
+            ArrayList<JavaFileObject> sourceFiles =
+                new ArrayList<JavaFileObject>(pending.size());
+            for (Integer i: pending) {
+                Jsr199JavaCompiler compiler = compilers.get(i.intValue());
+                compiler.classFiles = new ArrayList<BytecodeFile>();
+                sourceFiles.add(new SourceFile(compiler,
+                                    compiler.ctxt.getFullClassName(),
+                                    compiler.charArrayWriter.toString(),
+                                    i.intValue()));
+            }
+
+            StandardJavaFileManager stdFileManager =
+                fileManagers.get(first.cpath, first.options);
+            boolean compiled;
+            try {
+                JavaFileManager javaFileManager =
+                    first.getJavaFileManager(stdFileManager);
+                javax.tools.JavaCompiler.CompilationTask ct =
+                    javac.getTask(null,
+                                  javaFileManager,
+                                  diagnostics,
+                                  first.options,
+                                  null,
+                                  sourceFiles);
+                compiled = ct.call();
+            } finally {
+                fileManagers.release(first.cpath, first.options,
+                                     stdFileManager);
+            }
+
+            if (compiled) {
+                for (Integer i: pending) {
+                    compilers.get(i.intValue()).setBytecodes();
+                }
+                break;
+            }
+
+            // Sort the diagnostics out by page
+            HashMap<Integer, List<Diagnostic<? extends JavaFileObject>>>
+                pageDiagnostics =
+                    new HashMap<Integer,
+                                List<Diagnostic<? extends JavaFileObject>>>();
+            HashSet<Integer> failed = new HashSet<Integer>();
+            ArrayList<Diagnostic<? extends JavaFileObject>> others =
+                new ArrayList<Diagnostic<? extends JavaFileObject>>();
+            for (Diagnostic<? extends JavaFileObject> dm:
+                     diagnostics.getDiagnostics()) {
+                Object source = dm.getSource();
+                if (!(source instanceof SourceFile)) {
+                    others.add(dm);
+                    continue;
+                }
+                Integer index = Integer.valueOf(((SourceFile) source).index);
+                List<Diagnostic<? extends JavaFileObject>> list =
+                    pageDiagnostics.get(index);
+                if (list == null) {
+                    list =
+                        new ArrayList<Diagnostic<? extends JavaFileObject>>();
+                    pageDiagnostics.put(index, list);
+                }
+                list.add(dm);
+                if (dm.getKind() == Diagnostic.Kind.ERROR) {
+                    failed.add(index);
+                }
+            }
+            if (failed.isEmpty()) {
+                // Errors not tied to any page fail the whole batch
+                failed.addAll(pending);
+            }
+
+            for (Integer i: failed) {
+                Jsr199JavaCompiler compiler = compilers.get(i.intValue());
+                ArrayList<JavacErrorDetail> problems =
+                    new ArrayList<JavacErrorDetail>();
+                ArrayList<Diagnostic<? extends JavaFileObject>> dms =
+                    new ArrayList<Diagnostic<? extends JavaFileObject>>(others);
+                if (pageDiagnostics.get(i) != null) {
+                    dms.addAll(pageDiagnostics.get(i));
+                }
+                for (Diagnostic<? extends JavaFileObject> dm: dms) {
+                    problems.add(ErrorDispatcher.createJavacError(
+                        compiler.javaFileName,
+                        pageNodes.get(i.intValue()),
+                        new StringBuilder(dm.getMessage(null)),
+                        (int) dm.getLineNumber()));
+                }
+                errors[i.intValue()] =
+                    problems.toArray(new JavacErrorDetail[0]);
+            }
+            pending.removeAll(failed);
+        }
+        return errors;
+    }
+
+    /**
+     * Returns true if the given compiler uses the same options and
+     * classpath as this one, so that their pages can be compiled together.
+     */
+    boolean isCompatible(Jsr199JavaCompiler other) {
+        return options.equals(other.options) && cpath.equals(other.cpath);
+    }
+
+    private void setBytecodes() {
+        for (BytecodeFile bytecodeFile: classFiles) {
+            rtctxt.setBytecode(bytecodeFile.getClassName(),
+                               bytecodeFile.getBytecode());
+        }
+    }
+
+
+    /*
+     * The in-memory Java source of a page.  The compiler the source
+     * belongs to gets the class files generated from it.
+     */
+    static class SourceFile extends SimpleJavaFileObject {
+
+        private Jsr199JavaCompiler compiler;
+        private String source;
+        private int index;
+
+        SourceFile(Jsr199JavaCompiler compiler, String className,
+                   String source) {
+            this(compiler, className, source, -1);
+        }
+
+        SourceFile(Jsr199JavaCompiler compiler, String className,
+                   String source, int index) {
+            super(URI.create("string:///" + className.replace('.','/') +
+                             Kind.SOURCE.extension),
+                  Kind.SOURCE);
+            this.compiler = compiler;
+            this.source = source;
+            this.index = index;
+        }
+
+        public CharSequence getCharContent(boolean ignore) {
+            return source;
+        }
+    }
+
 
     protected static class BytecodeFile extends SimpleJavaFileObject {
 
@@ -308,10 +471,14 @@ public class Jsr199JavaCompiler implements JavaCompiler {
         String packageName = className.substring(0, className.lastIndexOf("."));
         Map<String, Map<String, JavaFileObject>> packageMap =
             rtctxt.getPackageMap();
-        Map<String, JavaFileObject> packageFiles = packageMap.get(packageName);
-        if (packageFiles == null) {
-            packageFiles = new HashMap<String, JavaFileObject>();
-            packageMap.put(packageName, packageFiles);
+        Map<String, JavaFileObject> packageFiles;
+        synchronized (packageMap) {
+            packageFiles = packageMap.get(packageName);
+            if (packageFiles == null) {
+                packageFiles =
+                    new ConcurrentHashMap<String, JavaFileObject>();
+                packageMap.put(packageName, packageFiles);
+            }
         }
         packageFiles.put(className, classFile);
         classFiles.add(classFile);
@@ -341,7 +508,12 @@ public class Jsr199JavaCompiler implements JavaCompiler {
                                                        String className,
                                                        Kind kind,
                                                        FileObject sibling){
-                return getOutputFile(className,
+                // In a batch, the class belongs to the page of its source
+                Jsr199JavaCompiler compiler = Jsr199JavaCompiler.this;
+                if (sibling instanceof SourceFile) {
+                    compiler = ((SourceFile) sibling).compiler;
+                }
+                return compiler.getOutputFile(className,
                     URI.create("file:///" + className.replace('.','/') + kind));
             }
 
@@ -108,7 +108,8 @@ public class TagPluginManager {
 
     }
  
-    private void init(ErrorDispatcher err) throws JasperException {
+    private synchronized void init(ErrorDispatcher err)
+            throws JasperException {
 	if (initialized)
 	    return;
 
@@ -64,6 +64,7 @@ import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import javax.servlet.ServletResponse;
 import javax.servlet.jsp.JspWriter;
 import javax.servlet.jsp.tagext.BodyContent;
@@ -76,6 +77,12 @@ import org.apache.jasper.Constants;
  *
  * Provide support for discarding for the output that has been buffered. 
  *
+ * The buffer is made of chunks taken from the shared CharChunkPool, each
+ * twice the size of the previous one, so that growing the buffer never
+ * copies the characters already written.  When the BodyContentImpl is
+ * reused by another pushBody() only its first chunk is kept, and when the
+ * PageContext is released all chunks go back to the pool.
+ *
  * @author Rajiv Mordani
  * @author Jan Luehe
  */
@@ -84,8 +91,16 @@ public class BodyContentImpl extends BodyContent {
     private static final String LINE_SEPARATOR = System.getProperty(
                                                     "line.separator");
 
+    // All chunks of the buffer; the chunks before the current one are full
+    private ArrayList<char[]> chunks = new ArrayList<char[]>();
+    // Current chunk, or null if no chunk has been allocated yet
     private char[] cb;
+    // Index of the current chunk in chunks
+    private int current;
+    // Position in the current chunk
     private int nextChar;
+    // Number of characters in the chunks before the current one
+    private int filled;
     private boolean closed;
 
     // Enclosed writer to which any output is written
@@ -100,8 +115,6 @@ public class BodyContentImpl extends BodyContent {
     public BodyContentImpl(JspWriter enclosingWriter) {
         super(enclosingWriter);
 	bufferSize = Constants.DEFAULT_TAG_BUFFER_SIZE;
-	cb = new char[bufferSize];
-	nextChar = 0;
 	closed = false;
     }
 
@@ -113,8 +126,8 @@ public class BodyContentImpl extends BodyContent {
 	    writer.write(c);
 	} else {
 	    ensureOpen();
-	    if (nextChar >= bufferSize) {
-		reAllocBuff (1);
+	    if (cb == null || nextChar == cb.length) {
+		nextChunk();
 	    }
 	    cb[nextChar++] = (char) c;
 	}
@@ -148,11 +161,16 @@ public class BodyContentImpl extends BodyContent {
 		return;
 	    } 
 	    
-	    if (len >= bufferSize - nextChar)
-		reAllocBuff (len);
-	    
-	    System.arraycopy(cbuf, off, cb, nextChar, len);
-	    nextChar+=len;
+	    while (len > 0) {
+		if (cb == null || nextChar == cb.length) {
+		    nextChunk();
+		}
+		int n = Math.min(len, cb.length - nextChar);
+		System.arraycopy(cbuf, off, cb, nextChar, n);
+		nextChar += n;
+		off += n;
+		len -= n;
+	    }
 	}
     }
 
@@ -180,11 +198,16 @@ public class BodyContentImpl extends BodyContent {
 	    writer.write(s, off, len);
 	} else {
 	    ensureOpen();
-	    if (len >= bufferSize - nextChar)
-		reAllocBuff(len);
-
-	    s.getChars(off, off + len, cb, nextChar);
-	    nextChar += len;
+	    while (len > 0) {
+		if (cb == null || nextChar == cb.length) {
+		    nextChunk();
+		}
+		int n = Math.min(len, cb.length - nextChar);
+		s.getChars(off, off + n, cb, nextChar);
+		nextChar += n;
+		off += n;
+		len -= n;
+	    }
 	}
     }
 
@@ -510,7 +533,10 @@ public class BodyContentImpl extends BodyContent {
 	if (writer != null) {
 	    throw new IOException();
 	} else {
+	    current = 0;
 	    nextChar = 0;
+	    filled = 0;
+	    cb = chunks.isEmpty() ? null : chunks.get(0);
 	}
     }
 
@@ -539,7 +565,7 @@ public class BodyContentImpl extends BodyContent {
 	if (writer != null) {
 	    writer.close();
 	} else {
-	    cb = null;	
+	    trim(0);
 	    closed = true;
 	}
     }
@@ -548,7 +574,10 @@ public class BodyContentImpl extends BodyContent {
      * @return the number of bytes unused in the buffer
      */
     public int getRemaining() {
-	return (writer == null) ? bufferSize-nextChar : 0;
+	if (writer != null) {
+	    return 0;
+	}
+	return (cb == null) ? CharChunkPool.MIN_CHUNK_SIZE : cb.length-nextChar;
     }
 
     /**
@@ -559,7 +588,15 @@ public class BodyContentImpl extends BodyContent {
      * @return the value of this BodyJspWriter as a Reader
      */
     public Reader getReader() {
-	return (writer == null) ? new CharArrayReader (cb, 0, nextChar) : null;
+	if (writer != null) {
+	    return null;
+	}
+	// A copy, as the chunks go back to the shared pool on clear() and
+	// release()
+	if (cb == null) {
+	    return new CharArrayReader(new char[0]);
+	}
+	return new CharArrayReader(toCharArray());
     }
 
     /**
@@ -570,7 +607,13 @@ public class BodyContentImpl extends BodyContent {
      * @return the value of the BodyJspWriter as a String
      */
     public String getString() {
-	return (writer == null) ? new String(cb, 0, nextChar) : null;
+	if (writer != null) {
+	    return null;
+	}
+	if (current == 0) {
+	    return (cb == null) ? "" : new String(cb, 0, nextChar);
+	}
+	return new String(toCharArray());
     }
 	
     /**
@@ -583,7 +626,13 @@ public class BodyContentImpl extends BodyContent {
      */
     public void writeOut(Writer out) throws IOException {
 	if (writer == null) {
-	    out.write(cb, 0, nextChar);
+	    for (int i = 0; i < current; i++) {
+		char[] chunk = chunks.get(i);
+		out.write(chunk, 0, chunk.length);
+	    }
+	    if (cb != null) {
+		out.write(cb, 0, nextChar);
+	    }
 	    // Flush not called as the writer passed could be a BodyContent and
 	    // it doesn't allow to flush.
 	}
@@ -620,10 +669,19 @@ public class BodyContentImpl extends BodyContent {
 	    }
 	} else {
 	    bufferSize = bufferSizeSave;
-	    clearBody();
+	    // Keep only the first chunk of a buffer grown by a previous body
+	    trim(1);
 	}
     }
 
+    /**
+     * Returns all chunks of the buffer to the pool.  Called when the
+     * PageContext owning this BodyContentImpl is released.
+     */
+    void recycle() {
+	trim(0);
+    }
+
     private void ensureOpen() throws IOException {
 	if (closed) throw new IOException("Stream closed");
     }
@@ -631,24 +689,48 @@ public class BodyContentImpl extends BodyContent {
     /**
      * Reallocates buffer since the spec requires it to be unbounded.
      */
-    private void reAllocBuff(int len) {
-
-        if (bufferSize + len <= cb.length) {
-            bufferSize = cb.length;
-            return;
-        }
-
-        if (len < cb.length) {
-            len = cb.length;
-        }
-
-        bufferSize = cb.length + len;
-        char[] tmp = new char[bufferSize];
+    private void nextChunk() {
+	if (cb == null) {
+	    cb = CharChunkPool.allocate(CharChunkPool.MIN_CHUNK_SIZE);
+	    chunks.add(cb);
+	} else {
+	    filled += nextChar;
+	    current++;
+	    if (current < chunks.size()) {
+		cb = chunks.get(current);
+	    } else {
+		cb = CharChunkPool.allocate(
+			CharChunkPool.nextChunkSize(cb.length));
+		chunks.add(cb);
+	    }
+	}
+	nextChar = 0;
+    }
 
-	System.arraycopy(cb, 0, tmp, 0, cb.length);
-	cb = tmp;
-	tmp = null;
+    /*
+     * Empties the buffer, returning all but the first 'retain' chunks to
+     * the pool.
+     */
+    private void trim(int retain) {
+	for (int i = chunks.size() - 1; i >= retain; i--) {
+	    CharChunkPool.release(chunks.remove(i));
+	}
+	current = 0;
+	nextChar = 0;
+	filled = 0;
+	cb = chunks.isEmpty() ? null : chunks.get(0);
+    }
 
+    private char[] toCharArray() {
+	char[] result = new char[filled + nextChar];
+	int pos = 0;
+	for (int i = 0; i < current; i++) {
+	    char[] chunk = chunks.get(i);
+	    System.arraycopy(chunk, 0, result, pos, chunk.length);
+	    pos += chunk.length;
+	}
+	System.arraycopy(cb, 0, result, pos, nextChar);
+	return result;
     }
 
 
@@ -0,0 +1,123 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A shared pool of char arrays used as buffer segments by BodyContentImpl.
+ *
+ * Chunks come in power-of-two size classes, from MIN_CHUNK_SIZE to
+ * MAX_CHUNK_SIZE chars.  Each size class holds at most MAX_CHARS chars
+ * worth of idle chunks; chunks returned to a full size class are left to
+ * the garbage collector, so the memory retained by the pool is bounded no
+ * matter how large a single body gets.  Each size class is a StripedPool,
+ * so that threads running on different processors seldom contend for a
+ * lock.
+ */
+final class CharChunkPool {
+
+    static final int MIN_CHUNK_SIZE = 512;
+
+    static final int MAX_CHUNK_SIZE = 32 * 1024;
+
+    private static final int MAX_CHARS = Integer.getInteger(
+        "org.apache.jasper.runtime.CharChunkPool.MAX_CHARS", 1024 * 1024);
+
+    private static final List<StripedPool<char[]>> classes =
+        createClasses();
+
+    private CharChunkPool() {
+    }
+
+    /**
+     * Returns the size of the chunk that follows one of the given size,
+     * i.e. twice that size, up to MAX_CHUNK_SIZE.
+     */
+    static int nextChunkSize(int size) {
+        return (size >= MAX_CHUNK_SIZE)? MAX_CHUNK_SIZE: size * 2;
+    }
+
+    /**
+     * Gets a chunk of the given size, which must be a power of two between
+     * MIN_CHUNK_SIZE and MAX_CHUNK_SIZE.
+     */
+    static char[] allocate(int size) {
+        StripedPool<char[]> pool = getClass(size);
+        char[] chunk = (pool == null)? null: pool.get();
+        return (chunk != null)? chunk: new char[size];
+    }
+
+    /**
+     * Returns a chunk to the pool.
+     */
+    static void release(char[] chunk) {
+        StripedPool<char[]> pool = getClass(chunk.length);
+        if (pool != null) {
+            pool.put(chunk);
+        }
+    }
+
+    private static StripedPool<char[]> getClass(int size) {
+        int index = Integer.numberOfTrailingZeros(size)
+            - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+        if (Integer.bitCount(size) != 1 || index < 0
+                || index >= classes.size()) {
+            return null;
+        }
+        return classes.get(index);
+    }
+
+    private static List<StripedPool<char[]>> createClasses() {
+        List<StripedPool<char[]>> pools = new ArrayList<StripedPool<char[]>>();
+        if (MAX_CHARS <= 0) {
+            return pools;
+        }
+        int count = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        for (int i = 0; i < count; i++) {
+            int size = MIN_CHUNK_SIZE << i;
+            pools.add(new StripedPool<char[]>(Math.max(1, MAX_CHARS / size)));
+        }
+        return pools;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import javax.el.ELContext;
+import javax.el.ExpressionFactory;
+import javax.servlet.jsp.PageContext;
+
+import org.apache.jasper.security.SecurityUtil;
+
+/**
+ * Runtime support for the EL expressions that the compiler translated to
+ * Java (see the genELAsJava option).
+ *
+ * A translated expression is only used when it gives the same result as
+ * the EL interpreter: the application must not have added ELResolvers or
+ * ELContextListeners, and no variables may be set in the VariableMapper of
+ * the ELContext.  Otherwise the generated code falls back to
+ * PageContextImpl.evaluateExpression.
+ */
+public final class ELRuntimeLibrary {
+
+    private ELRuntimeLibrary() {
+    }
+
+    /**
+     * Returns true if the translated form of an EL expression can be used
+     * with the given PageContext.
+     */
+    public static boolean isDirect(PageContext pc) {
+        if (SecurityUtil.isPackageProtectionEnabled()) {
+            return false;
+        }
+        if (pc instanceof PageContextImpl) {
+            if (((PageContextImpl) pc).hasELVariables()) {
+                return false;
+            }
+        } else if (pc instanceof JspContextWrapper) {
+            if (((JspContextWrapper) pc).hasELVariables()) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        return getJspApplicationContext(pc).hasDefaultELResolvers();
+    }
+
+    /**
+     * Returns the value of the given property of base, as the property
+     * operator "base[property]" would.
+     */
+    public static Object getValue(PageContext pc, Object base,
+                                  Object property) {
+        if (base == null) {
+            return null;
+        }
+        if (base instanceof Map) {
+            return ((Map<?, ?>) base).get(property);
+        }
+        if (property instanceof Long) {
+            int index = ((Long) property).intValue();
+            if (base instanceof List) {
+                List<?> list = (List<?>) base;
+                return index >= 0 && index < list.size()
+                    ? list.get(index) : null;
+            }
+            if (base.getClass().isArray()) {
+                return index >= 0 && index < Array.getLength(base)
+                    ? Array.get(base, index) : null;
+            }
+        }
+        ELContext elContext = pc.getELContext();
+        elContext.setPropertyResolved(false);
+        if (base instanceof ResourceBundle
+                || base instanceof List || base.getClass().isArray()) {
+            // Leave the less common forms to the ELResolver chain
+            return elContext.getELResolver().getValue(elContext, base,
+                                                      property);
+        }
+        return getJspApplicationContext(pc).getBeanELResolver().getValue(
+            elContext, base, property);
+    }
+
+    /**
+     * Compares two values with the rules of the EL "==" operator.
+     */
+    public static boolean equals(PageContext pc, Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        ExpressionFactory factory =
+            getJspApplicationContext(pc).getExpressionFactory();
+        if (a instanceof BigDecimal || b instanceof BigDecimal) {
+            return factory.coerceToType(a, BigDecimal.class).equals(
+                factory.coerceToType(b, BigDecimal.class));
+        }
+        if (isFloatingPoint(a) || isFloatingPoint(b)) {
+            return factory.coerceToType(a, Double.class).equals(
+                factory.coerceToType(b, Double.class));
+        }
+        if (a instanceof BigInteger || b instanceof BigInteger) {
+            return factory.coerceToType(a, BigInteger.class).equals(
+                factory.coerceToType(b, BigInteger.class));
+        }
+        if (isIntegral(a) || isIntegral(b)) {
+            return factory.coerceToType(a, Long.class).equals(
+                factory.coerceToType(b, Long.class));
+        }
+        if (a instanceof Boolean || b instanceof Boolean) {
+            return factory.coerceToType(a, Boolean.class).equals(
+                factory.coerceToType(b, Boolean.class));
+        }
+        if (a instanceof Enum) {
+            return a.equals(factory.coerceToType(b,
+                ((Enum<?>) a).getDeclaringClass()));
+        }
+        if (b instanceof Enum) {
+            return b.equals(factory.coerceToType(a,
+                ((Enum<?>) b).getDeclaringClass()));
+        }
+        if (a instanceof String || b instanceof String) {
+            return factory.coerceToType(a, String.class).equals(
+                factory.coerceToType(b, String.class));
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Coerces the value of a translated expression to the expected type,
+     * as ValueExpression.getValue does.
+     */
+    public static Object coerce(PageContext pc, Object value,
+                                Class<?> expectedType) {
+        return getJspApplicationContext(pc).getExpressionFactory()
+            .coerceToType(value, expectedType);
+    }
+
+    private static boolean isFloatingPoint(Object value) {
+        return value instanceof Double || value instanceof Float;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte
+            || value instanceof Character;
+    }
+
+    private static JspApplicationContextImpl getJspApplicationContext(
+            PageContext pc) {
+        PageContext root = JspContextWrapper.getRootPageContext(pc);
+        if (root instanceof PageContextImpl) {
+            return ((PageContextImpl) root).getJspApplicationContext();
+        }
+        return JspApplicationContextImpl.findJspApplicationContext(
+            pc.getServletContext());
+    }
+}
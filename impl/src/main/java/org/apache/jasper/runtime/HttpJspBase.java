@@ -82,6 +82,10 @@ public abstract class HttpJspBase
     extends HttpServlet 
     implements HttpJspPage 
 {
+    // Set once the JspApplicationContext has been told that this page
+    // received a request, see PageContextImpl
+    private volatile boolean firstRequestSeen;
+
     protected HttpJspBase() {
     }
 
@@ -111,6 +115,14 @@ public abstract class HttpJspBase
         _jspService(request, response);
     }
     
+    boolean isFirstRequestSeen() {
+        return firstRequestSeen;
+    }
+
+    void setFirstRequestSeen() {
+        firstRequestSeen = true;
+    }
+
     public void jspInit() {
     }
 
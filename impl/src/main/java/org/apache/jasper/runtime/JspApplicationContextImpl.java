@@ -64,16 +64,22 @@ package org.apache.jasper.runtime;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Collections;
 
 import javax.servlet.ServletContext;
 import javax.servlet.jsp.JspApplicationContext;
+import javax.servlet.jsp.el.ImplicitObjectELResolver;
+import javax.servlet.jsp.el.ScopedAttributeELResolver;
 
 import javax.el.ELException;
 import javax.el.ELResolver;
+import javax.el.ArrayELResolver;
+import javax.el.BeanELResolver;
+import javax.el.CompositeELResolver;
+import javax.el.ListELResolver;
+import javax.el.MapELResolver;
+import javax.el.ResourceBundleELResolver;
+import javax.el.StaticFieldELResolver;
 import javax.el.ELContext;
 import javax.el.ExpressionFactory;
 import javax.el.ELContextListener;
@@ -95,7 +101,7 @@ public class JspApplicationContextImpl implements JspApplicationContext {
     }
 
     public void addELResolver(ELResolver resolver) {
-        if ("true".equals(context.getAttribute(Constants.FIRST_REQUEST_SEEN))) {
+        if (firstRequestSeen || elResolver != null) {
             throw new IllegalStateException("Attempt to invoke addELResolver "
                 + "after the application has already received a request");
         }
@@ -103,6 +109,17 @@ public class JspApplicationContextImpl implements JspApplicationContext {
         elResolvers.add(0, resolver);
     }
 
+    /*
+     * Called by PageContextImpl for the first request of each page.  The
+     * context attribute is set only once.
+     */
+    void setFirstRequestSeen() {
+        if (!firstRequestSeen) {
+            firstRequestSeen = true;
+            context.setAttribute(Constants.FIRST_REQUEST_SEEN, "true");
+        }
+    }
+
     public ExpressionFactory getExpressionFactory() {
         if (expressionFactory == null) {
             expressionFactory = ExpressionFactory.newInstance();
@@ -112,6 +129,11 @@ public class JspApplicationContextImpl implements JspApplicationContext {
 
     public void setExpressionFactory(ExpressionFactory expressionFactory) {
         this.expressionFactory = expressionFactory;
+        expressionCache.clear();
+    }
+
+    ValueExpressionCache getValueExpressionCache() {
+        return expressionCache;
     }
 
     public void addELContextListener(ELContextListener listener) {
@@ -131,32 +153,109 @@ public class JspApplicationContextImpl implements JspApplicationContext {
         return elContext;
     }
 
+    /*
+     * The JspApplicationContextImpl is kept as an attribute of the
+     * ServletContext, so that the lookup needs no global lock, and a
+     * static reference does not keep an undeployed application alive.
+     * Only the creation is synchronized, on the ServletContext.
+     */
     protected static JspApplicationContextImpl findJspApplicationContext(ServletContext context) {
 
-        JspApplicationContextImpl jaContext = map.get(context);
+        JspApplicationContextImpl jaContext = (JspApplicationContextImpl)
+            context.getAttribute(Constants.JSP_APPLICATION_CONTEXT_ATTRIBUTE);
         if (jaContext == null) {
-            jaContext = new JspApplicationContextImpl(context);
-            map.put(context, jaContext);
+            synchronized (context) {
+                jaContext = (JspApplicationContextImpl) context.getAttribute(
+                    Constants.JSP_APPLICATION_CONTEXT_ATTRIBUTE);
+                if (jaContext == null) {
+                    jaContext = new JspApplicationContextImpl(context);
+                    context.setAttribute(
+                        Constants.JSP_APPLICATION_CONTEXT_ATTRIBUTE,
+                        jaContext);
+                }
+            }
         }
         return jaContext;
     }
 
     public static void removeJspApplicationContext(ServletContext context) {
-        map.remove(context);
+        context.removeAttribute(Constants.JSP_APPLICATION_CONTEXT_ATTRIBUTE);
     }
 
     protected Iterator<ELResolver> getELResolvers() {
         return elResolvers.iterator();
     }
 
-    private static Map<ServletContext, JspApplicationContextImpl> map =
-            Collections.synchronizedMap(
-                new HashMap<ServletContext, JspApplicationContextImpl>());
+    /**
+     * Returns the ELResolver chain shared by all the PageContexts of this
+     * application.  The chain is built on first use, after which no more
+     * ELResolvers can be added.  Since the resolvers are kept across
+     * requests, the BeanELResolver keeps its property cache.
+     */
+    ELResolver getELResolver() {
+        ELResolver resolver = elResolver;
+        if (resolver == null) {
+            synchronized (this) {
+                resolver = elResolver;
+                if (resolver == null) {
+                    resolver = createELResolver();
+                    elResolver = resolver;
+                }
+            }
+        }
+        return resolver;
+    }
+
+    /*
+     * The BeanELResolver of the chain, used directly by the EL expressions
+     * that the compiler translated to Java.
+     */
+    BeanELResolver getBeanELResolver() {
+        return beanELResolver;
+    }
+
+    /*
+     * Returns true if the application added no ELResolvers and no
+     * ELContextListeners, so that an EL expression translated to Java
+     * evaluates to the same value as with the ELResolver chain.
+     */
+    boolean hasDefaultELResolvers() {
+        return elResolvers.isEmpty() && listeners.isEmpty();
+    }
+
+    private ELResolver createELResolver() {
+
+        CompositeELResolver celResolver = new CompositeELResolver();
+
+        celResolver.add(new ImplicitObjectELResolver());
+        // Add ELResolvers registered in JspApplicationContext
+        for (ELResolver resolver: elResolvers) {
+            celResolver.add(resolver);
+        }
+        ELResolver streamELResolver =
+            getExpressionFactory().getStreamELResolver();
+        if (streamELResolver != null) {
+            celResolver.add(streamELResolver);
+        }
+        celResolver.add(new StaticFieldELResolver());
+        celResolver.add(new MapELResolver());
+        celResolver.add(new ResourceBundleELResolver());
+        celResolver.add(new ListELResolver());
+        celResolver.add(new ArrayELResolver());
+        celResolver.add(beanELResolver);
+        celResolver.add(new ScopedAttributeELResolver());
+        return celResolver;
+    }
 
     private ArrayList<ELResolver> elResolvers = new ArrayList<ELResolver>();
     private ArrayList<ELContextListener> listeners =
             new ArrayList<ELContextListener>();
     private ServletContext context;
     private ExpressionFactory expressionFactory;
+    private volatile ELResolver elResolver;
+    private volatile boolean firstRequestSeen;
+    private final BeanELResolver beanELResolver = new BeanELResolver();
+    private final ValueExpressionCache expressionCache =
+            new ValueExpressionCache();
 }
 
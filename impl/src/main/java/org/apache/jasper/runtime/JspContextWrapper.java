@@ -63,7 +63,6 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -103,7 +102,7 @@ public class JspContextWrapper extends PageContext {
     // Invoking JSP context
     private PageContext invokingJspCtxt;
 
-    private Hashtable<String, Object> pageAttributes;
+    private PageAttributeMap pageAttributes;
 
     // ArrayList of NESTED scripting variables
     private ArrayList<String> nestedVars;
@@ -127,7 +126,7 @@ public class JspContextWrapper extends PageContext {
 	this.nestedVars = nestedVars;
 	this.atBeginVars = atBeginVars;
 	this.atEndVars = atEndVars;
-	this.pageAttributes = new Hashtable<String, Object>(16);
+	this.pageAttributes = new PageAttributeMap();
 	this.aliases = aliases;
 
 	if (nestedVars != null) {
@@ -334,6 +333,15 @@ public class JspContextWrapper extends PageContext {
         return elContext;
     }
 
+    /*
+     * Returns true if variables were set in the VariableMapper of the
+     * ELContext.  The ELContext is not created if it does not exist yet.
+     */
+    boolean hasELVariables() {
+        return elContext != null
+            && !((VariableMapperImpl) elContext.getVariableMapper()).isEmpty();
+    }
+
     public void forward(String relativeUrlPath)
         throws ServletException, IOException
     {
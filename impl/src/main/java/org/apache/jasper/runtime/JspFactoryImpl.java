@@ -97,6 +97,18 @@ public class JspFactoryImpl extends JspFactory {
         Boolean.getBoolean(
             "org.apache.jasper.runtime.JspFactoryImpl.USE_POOL");
 
+    // If positive, PageContext objects are kept in a pool of this size
+    // that is shared by all threads, instead of in per-thread pools.  A
+    // container that runs each request on a new (possibly virtual) thread
+    // then does not accumulate PageContexts.
+    private static final int SHARED_POOL_SIZE =
+        Integer.getInteger(
+            "org.apache.jasper.runtime.JspFactoryImpl.SHARED_POOL_SIZE", 0);
+
+    private final StripedPool<PageContext> sharedPool =
+        (SHARED_POOL_SIZE > 0)?
+            new StripedPool<PageContext>(SHARED_POOL_SIZE): null;
+
     // Per-thread pool of PageContext objects
     private ThreadLocal<LinkedList<PageContext>> pool =
         new ThreadLocal<LinkedList<PageContext>>() {
@@ -151,6 +163,30 @@ public class JspFactoryImpl extends JspFactory {
         return JspApplicationContextImpl.findJspApplicationContext(context);
     }
 
+    /**
+     * Gets the number of PageContext requests served from the shared pool.
+     * Always 0 unless the shared pool is enabled with the system property
+     * org.apache.jasper.runtime.JspFactoryImpl.SHARED_POOL_SIZE.
+     */
+    public long getPoolHitCount() {
+        return (sharedPool != null)? sharedPool.getHitCount(): 0;
+    }
+
+    /**
+     * Gets the number of PageContext requests that the shared pool could
+     * not serve, and that created a new PageContext.
+     */
+    public long getPoolMissCount() {
+        return (sharedPool != null)? sharedPool.getMissCount(): 0;
+    }
+
+    /**
+     * Gets the number of PageContexts currently in the shared pool.
+     */
+    public int getPoolSize() {
+        return (sharedPool != null)? sharedPool.size(): 0;
+    }
+
     private PageContext internalGetPageContext(Servlet servlet,
 					       ServletRequest request,
 					       ServletResponse response, 
@@ -160,7 +196,12 @@ public class JspFactoryImpl extends JspFactory {
 					       boolean autoflush) {
         try {
 	    PageContext pc = null;
-	    if( USE_POOL ) {
+	    if (sharedPool != null) {
+                pc = sharedPool.get();
+                if (pc == null) {
+                    pc = new PageContextImpl(this);
+                }
+	    } else if( USE_POOL ) {
                 LinkedList<PageContext> pcPool = pool.get();
                 if (!pcPool.isEmpty()) {
                     pc = pcPool.removeFirst();
@@ -183,7 +224,9 @@ public class JspFactoryImpl extends JspFactory {
 
     private void internalReleasePageContext(PageContext pc) {
         pc.release();
-	if (USE_POOL && (pc instanceof PageContextImpl)) {
+	if (sharedPool != null && (pc instanceof PageContextImpl)) {
+            sharedPool.put(pc);
+	} else if (USE_POOL && (pc instanceof PageContextImpl)) {
             LinkedList<PageContext> pcPool = pool.get();
             pcPool.addFirst(pc);
 	}
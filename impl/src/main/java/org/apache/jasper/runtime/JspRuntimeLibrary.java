@@ -58,6 +58,10 @@
 
 package org.apache.jasper.runtime;
 
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.beans.PropertyEditor;
 import java.beans.PropertyEditorManager;
 import java.io.ByteArrayOutputStream;
@@ -65,6 +69,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Method;
 import java.util.Enumeration;
+import java.util.HashMap;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -97,6 +102,18 @@ public class JspRuntimeLibrary {
     private static final String JSP_EXCEPTION
 	= "javax.servlet.jsp.jspException";
 
+    /*
+     * The bean properties of a class, as found by the Introspector.  The
+     * value is kept by the Class itself, so it does not prevent the class
+     * loader of the bean from being garbage collected.
+     */
+    private static final ClassValue<BeanProperties> beanProperties =
+        new ClassValue<BeanProperties>() {
+            protected BeanProperties computeValue(Class<?> beanClass) {
+                return new BeanProperties(beanClass);
+            }
+        };
+
     /**
      * Returns the value of the javax.servlet.error.exception request
      * attribute value, if present, otherwise the value of the
@@ -311,19 +328,11 @@ public class JspRuntimeLibrary {
         Class type = null;
         Class propertyEditorClass = null;
 	try {
-	    java.beans.BeanInfo info
-		= java.beans.Introspector.getBeanInfo(bean.getClass());
-	    if ( info != null ) {
-		java.beans.PropertyDescriptor pd[]
-		    = info.getPropertyDescriptors();
-		for (int i = 0 ; i < pd.length ; i++) {
-		    if ( pd[i].getName().equals(prop) ) {
-			method = pd[i].getWriteMethod();
-			type   = pd[i].getPropertyType();
-			propertyEditorClass = pd[i].getPropertyEditorClass();
-			break;
-		    }
-		}
+	    PropertyInfo pi = getPropertyInfo(bean.getClass(), prop);
+	    if ( pi != null ) {
+		method = pi.writeMethod;
+		type   = pi.type;
+		propertyEditorClass = pi.editorClass;
 	    }
 	    if ( method != null ) {
 		if (type.isArray()) {
@@ -722,24 +731,11 @@ public class JspRuntimeLibrary {
 	Method method = null;	
         Class type = null;
 	try {
-	    java.beans.BeanInfo info
-                = java.beans.Introspector.getBeanInfo(beanClass);
-	    if ( info != null ) {
-		java.beans.PropertyDescriptor pd[]
-		    = info.getPropertyDescriptors();
-		for (int i = 0 ; i < pd.length ; i++) {
-		    if ( pd[i].getName().equals(prop) ) {
-			method = pd[i].getWriteMethod();
-			type   = pd[i].getPropertyType();
-			break;
-		    }
-		}
-            } else {        
-                // just in case introspection silently fails.
-                throw new JasperException(
-                    Localizer.getMessage("jsp.error.beans.nobeaninfo",
-					 beanClass.getName()));
-            }
+	    PropertyInfo pi = getPropertyInfo(beanClass, prop);
+	    if ( pi != null ) {
+		method = pi.writeMethod;
+		type   = pi.type;
+	    }
         } catch (Exception ex) {
             throw new JasperException (ex);
         }
@@ -766,24 +762,11 @@ public class JspRuntimeLibrary {
         Method method = null;        
         Class type = null;
         try {
-            java.beans.BeanInfo info
-                = java.beans.Introspector.getBeanInfo(beanClass);
-            if ( info != null ) {
-                java.beans.PropertyDescriptor pd[]
-                    = info.getPropertyDescriptors();
-                for (int i = 0 ; i < pd.length ; i++) {
-                    if ( pd[i].getName().equals(prop) ) {
-                        method = pd[i].getReadMethod();
-                        type   = pd[i].getPropertyType();
-                        break;
-                    }
-                }
-            } else {        
-                // just in case introspection silently fails.
-		throw new JasperException(
-                    Localizer.getMessage("jsp.error.beans.nobeaninfo",
-					 beanClass.getName()));
-	    }
+            PropertyInfo pi = getPropertyInfo(beanClass, prop);
+            if ( pi != null ) {
+                method = pi.readMethod;
+                type   = pi.type;
+            }
 	} catch (Exception ex) {
 	    throw new JasperException (ex);
 	}
@@ -802,6 +785,77 @@ public class JspRuntimeLibrary {
 	return method;
     }
 
+    /**
+     * Returns the property editor class of the given bean property, or null
+     * if the property has none, or if the bean class has no such property.
+     */
+    public static Class getPropertyEditorClass(Class beanClass, String prop)
+	    throws JasperException {
+        try {
+            PropertyInfo pi = getPropertyInfo(beanClass, prop);
+            return pi == null ? null : pi.editorClass;
+        } catch (Exception ex) {
+            throw new JasperException (ex);
+        }
+    }
+
+    /*
+     * Returns the cached information for the given property of the given
+     * bean class, or null if the class has no such property.
+     */
+    private static PropertyInfo getPropertyInfo(Class<?> beanClass,
+                                                String prop)
+            throws IntrospectionException {
+        BeanProperties props = beanProperties.get(beanClass);
+        if (props.exception != null) {
+            throw props.exception;
+        }
+        return props.properties.get(prop);
+    }
+
+    /*
+     * The accessors, type and property editor of a bean property, resolved
+     * once from its PropertyDescriptor.
+     */
+    private static final class PropertyInfo {
+        final Method readMethod;
+        final Method writeMethod;
+        final Class<?> type;
+        final Class<?> editorClass;
+
+        PropertyInfo(PropertyDescriptor pd) {
+            readMethod = pd.getReadMethod();
+            writeMethod = pd.getWriteMethod();
+            type = pd.getPropertyType();
+            editorClass = pd.getPropertyEditorClass();
+        }
+    }
+
+    /*
+     * The properties of a bean class, by name.  If the introspection
+     * fails, the exception is kept and thrown on every lookup.
+     */
+    private static final class BeanProperties {
+        final HashMap<String, PropertyInfo> properties =
+            new HashMap<String, PropertyInfo>();
+        IntrospectionException exception;
+
+        BeanProperties(Class<?> beanClass) {
+            try {
+                BeanInfo info = Introspector.getBeanInfo(beanClass);
+                for (PropertyDescriptor pd: info.getPropertyDescriptors()) {
+                    // Keep the first descriptor found for a name, as the
+                    // linear search in the Introspector results used to
+                    if (!properties.containsKey(pd.getName())) {
+                        properties.put(pd.getName(), new PropertyInfo(pd));
+                    }
+                }
+            } catch (IntrospectionException ex) {
+                exception = ex;
+            }
+        }
+    }
+
     //*********************************************************************
     // PropertyEditor Support
 
@@ -62,6 +62,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Arrays;
 
 import javax.servlet.ServletResponse;
 import javax.servlet.jsp.JspWriter;
@@ -108,6 +109,21 @@ public class JspWriterImpl extends JspWriter {
     private boolean closed = false;
     protected boolean implementsByteWriter = true;
     protected ByteWriter byteOut;
+    // The character encoding of the response, fixed once out is obtained
+    private String outEncoding;
+
+    // Text pre-encoded with the page encoding, held in the buffer by
+    // reference: segment i goes out after the characters written to the
+    // buffer before position segmentPos[i].  The text of a segment counts
+    // against the buffer size as if it had been copied into the buffer.
+    // The bytes are only written if the response turns out to use the
+    // encoding of the segment.
+    private int[] segmentPos;
+    private byte[][] segmentBytes;
+    private String[] segmentStrings;
+    private String[] segmentEncodings;
+    private int segmentCount;
+    private int segmentChars;
     
     public JspWriterImpl() {
 	super( Constants.DEFAULT_BUFFER_SIZE, true );
@@ -169,6 +185,8 @@ public class JspWriterImpl extends JspWriter {
         closed = false;
         out = null;
         byteOut = null;
+        outEncoding = null;
+        clearSegments();
         releaseCharBuffer();
         response = null;
     }
@@ -183,16 +201,37 @@ public class JspWriterImpl extends JspWriter {
             return;
         flushed = true;
         ensureOpen();
-        if (buf.pos == buf.offset)
+        if (buf.pos == buf.offset && segmentCount == 0)
             return;
         initOut();
-        out.write(buf.buf, buf.offset, buf.pos - buf.offset);
+        int start = buf.offset;
+        if (segmentCount > 0) {
+            initByteOut();
+            for (int i = 0; i < segmentCount; i++) {
+                if (segmentPos[i] > start) {
+                    out.write(buf.buf, start, segmentPos[i] - start);
+                    start = segmentPos[i];
+                }
+                if (implementsByteWriter
+                        && (segmentEncodings[i] == null
+                            || segmentEncodings[i].equals(outEncoding))) {
+                    byteOut.write(segmentBytes[i], 0, segmentBytes[i].length);
+                } else {
+                    out.write(segmentStrings[i]);
+                }
+            }
+            clearSegments();
+        }
+        if (buf.pos > start)
+            out.write(buf.buf, start, buf.pos - start);
         buf.pos = buf.offset;
     }
 
     private void initOut() throws IOException {
         if (out == null) {
             out = response.getWriter();
+            // The encoding can no longer change once the writer is obtained
+            outEncoding = response.getCharacterEncoding();
 	}
     }
 	
@@ -223,6 +262,7 @@ public class JspWriterImpl extends JspWriter {
         ensureOpen();
         if (buf != null)
             buf.pos = buf.offset;
+        clearSegments();
     }
 
     public void clearBuffer() throws IOException {
@@ -231,6 +271,7 @@ public class JspWriterImpl extends JspWriter {
                     getLocalizeMessage("jsp.error.ise_on_clear"));
         ensureOpen();
         buf.pos = buf.offset;
+        clearSegments();
     }
 
     private final void bufferOverflow() throws IOException {
@@ -271,6 +312,7 @@ public class JspWriterImpl extends JspWriter {
             out.close();
         out = null;
         byteOut = null;
+        outEncoding = null;
         closed = true;
     }
 
@@ -278,7 +320,7 @@ public class JspWriterImpl extends JspWriter {
      * @return the number of bytes unused in the buffer
      */
     public int getRemaining() {
-        return buf == null ? 0 : buf.lim - buf.pos;
+        return buf == null ? 0 : buf.lim - buf.pos - segmentChars;
     }
 
     /** check to make sure that the stream has not been closed */
@@ -288,9 +330,60 @@ public class JspWriterImpl extends JspWriter {
     }
 
 
+    /**
+     * Write a String pre-encoded with the given encoding.
+     *
+     * The byte array is written only if the underlying writer is a
+     * ByteWriter and the response uses the same encoding, as determined
+     * for each request when the response writer is obtained.  Otherwise
+     * the String is written.  If the page is buffered, the byte array is
+     * kept in the buffer by reference and the choice is made when the
+     * buffer is flushed, as the encoding of the response may still be set
+     * until then.
+     *
+     * @param encoding The encoding of the byte array
+     * @param buf      The text encoded with the given encoding
+     * @param str      The original text
+     */
+    public void write(String encoding, byte buf[], String str)
+            throws IOException {
+
+        ensureOpen();
+        if (bufferSize == 0) {
+            initByteOut();
+            if (implementsByteWriter && encoding.equals(outEncoding)) {
+                write(buf, 0, buf.length);
+            } else {
+                write(str);
+            }
+            return;
+        }
+        int len = str.length();
+        if (len == 0) {
+            return;
+        }
+        if (len > getRemaining()) {
+            if (autoFlush)
+                flushBuffer();
+            else
+                bufferOverflow();
+        }
+        if (len < bufferSize) {
+            addSegment(buf, str, encoding);
+        } else {
+            // Too large to be buffered, write it directly as for chars
+            write(str);
+        }
+    }
+
     /**
      * Attempt to write a String pre-encoded with the page encoding.
      *
+     * If the page is buffered, the byte array is kept in the buffer by
+     * reference and written out when the buffer is flushed, unless the
+     * underlying writer turns out not to be a ByteWriter, in which case
+     * the String is written instead.
+     *
      * @param bytesOK If true, write out the byte array,
      *                else, write out the String.
      * @param buf     The text encoded with the page encoding
@@ -300,7 +393,28 @@ public class JspWriterImpl extends JspWriter {
             throws IOException {
 
         ensureOpen();
-        if (bufferSize == 0 && bytesOK) {
+        if (bytesOK && bufferSize == 0) {
+            initByteOut();
+            if (implementsByteWriter) {
+                write(buf, 0, buf.length);
+                return;
+            }
+        } else if (bytesOK && implementsByteWriter) {
+            int len = str.length();
+            if (len == 0) {
+                return;
+            }
+            if (len > getRemaining()) {
+                if (autoFlush)
+                    flushBuffer();
+                else
+                    bufferOverflow();
+            }
+            if (len < bufferSize) {
+                addSegment(buf, str, null);
+                return;
+            }
+            // Too large to be buffered, write it directly as for chars
             initByteOut();
             if (implementsByteWriter) {
                 write(buf, 0, buf.length);
@@ -310,6 +424,41 @@ public class JspWriterImpl extends JspWriter {
         write(str);
     }
 
+    /*
+     * A null encoding means that the bytes are known to match the encoding
+     * of the response.
+     */
+    private void addSegment(byte[] bytes, String str, String encoding) {
+        if (segmentPos == null) {
+            segmentPos = new int[8];
+            segmentBytes = new byte[8][];
+            segmentStrings = new String[8];
+            segmentEncodings = new String[8];
+        } else if (segmentCount == segmentPos.length) {
+            int size = segmentCount * 2;
+            segmentPos = Arrays.copyOf(segmentPos, size);
+            segmentBytes = Arrays.copyOf(segmentBytes, size);
+            segmentStrings = Arrays.copyOf(segmentStrings, size);
+            segmentEncodings = Arrays.copyOf(segmentEncodings, size);
+        }
+        segmentPos[segmentCount] = buf.pos;
+        segmentBytes[segmentCount] = bytes;
+        segmentStrings[segmentCount] = str;
+        segmentEncodings[segmentCount] = encoding;
+        segmentCount++;
+        segmentChars += str.length();
+    }
+
+    private void clearSegments() {
+        for (int i = 0; i < segmentCount; i++) {
+            segmentBytes[i] = null;
+            segmentStrings[i] = null;
+            segmentEncodings[i] = null;
+        }
+        segmentCount = 0;
+        segmentChars = 0;
+    }
+
     /* Returns true if bytes should be outputted.
      * Used by ServletResponseWrapperInclude.
     */
@@ -723,7 +872,8 @@ public class JspWriterImpl extends JspWriter {
 
     // START PWC 6512276
     public boolean hasData() {
-        if (bufferSize != 0 && buf.pos != buf.offset) {
+        if (bufferSize != 0
+                && (buf.pos != buf.offset || segmentCount > 0)) {
             return true;
         }
 
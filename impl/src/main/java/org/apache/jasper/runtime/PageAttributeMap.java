@@ -0,0 +1,191 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+package org.apache.jasper.runtime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Unsynchronized map of page-scope attributes, used by PageContextImpl and
+ * JspContextWrapper.
+ *
+ * Keys and values are kept in parallel arrays with open addressing and
+ * linear probing, and the arrays are only allocated when the first
+ * attribute is set, which keeps tag file invocations that never set a
+ * page-scope attribute free of any allocation.  Neither keys nor values
+ * may be null.
+ */
+final class PageAttributeMap {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+
+    Object get(String name) {
+        if (keys == null) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        for (int i = hash(name) & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    void put(String name, Object value) {
+        if (keys == null) {
+            keys = new String[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+        }
+        int mask = keys.length - 1;
+        int i = hash(name) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(name)) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = name;
+        values[i] = value;
+        // Keep the load factor at or below 2/3
+        if (++size * 3 > keys.length * 2) {
+            resize(keys.length * 2);
+        }
+    }
+
+    void remove(String name) {
+        if (keys == null) {
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = hash(name) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(name)) {
+                break;
+            }
+        }
+        if (keys[i] == null) {
+            return;
+        }
+        keys[i] = null;
+        values[i] = null;
+        size--;
+
+        // Shift back the entries following the removed one, so that
+        // lookups do not stop at the hole that was just created
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                keys[j] = null;
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns an enumeration of the names of the attributes.  The
+     * enumeration works on a snapshot, so attributes may be removed while
+     * it is in use.
+     */
+    Enumeration<String> keys() {
+        String[] names = new String[size];
+        copyKeys(names, 0);
+        return Collections.enumeration(Arrays.asList(names));
+    }
+
+    /**
+     * Copies the names of the attributes to the given array, starting at
+     * the given position, which must leave room for size() names.
+     */
+    void copyKeys(String[] names, int pos) {
+        if (keys != null) {
+            for (String key: keys) {
+                if (key != null) {
+                    names[pos++] = key;
+                }
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new String[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
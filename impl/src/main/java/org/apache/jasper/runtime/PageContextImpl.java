@@ -64,10 +64,9 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -89,23 +88,14 @@ import javax.servlet.jsp.JspApplicationContext;
 import javax.servlet.jsp.tagext.BodyContent;
 import javax.servlet.jsp.el.ExpressionEvaluator;
 import javax.servlet.jsp.el.VariableResolver;
-import javax.servlet.jsp.el.ImplicitObjectELResolver;
-import javax.servlet.jsp.el.ScopedAttributeELResolver;
 
 import javax.el.ELException;
 import javax.el.ELResolver;
 import javax.el.ELContext;
-import javax.el.BeanELResolver;
-import javax.el.ArrayELResolver;
-import javax.el.MapELResolver;
-import javax.el.ResourceBundleELResolver;
-import javax.el.ListELResolver;
-import javax.el.CompositeELResolver;
 import javax.el.ValueExpression;
 import javax.el.FunctionMapper;
 import javax.el.MethodExpression;
 import javax.el.ExpressionFactory;
-import javax.el.StaticFieldELResolver;
 
 import org.apache.jasper.Constants;
 import org.apache.jasper.compiler.Localizer;
@@ -141,9 +131,18 @@ public class PageContextImpl extends PageContext {
     private ELResolver elResolver;
     private ELContext elContext;
 
-    // page-scope attributes
-    private HashMap<String, Object> attributes;
-    private boolean isNametableInitialized;
+    // Names of the implicit objects, indexed by their page-scope slot
+    private static final String[] IMPLICIT_OBJECT_NAMES = {
+        OUT, REQUEST, RESPONSE, SESSION, PAGE, CONFIG, PAGECONTEXT, APPLICATION
+    };
+    private static final int IMPLICIT_OBJECT_COUNT =
+        IMPLICIT_OBJECT_NAMES.length;
+
+    // page-scope attributes, other than the implicit objects
+    private PageAttributeMap attributes;
+    // Bit i is set when the implicit object in slot i has been replaced or
+    // removed through the page-scope attribute of the same name
+    private int overriddenImplicits;
 
     // per-request state
     private ServletRequest request;
@@ -160,7 +159,7 @@ public class PageContextImpl extends PageContext {
     PageContextImpl(JspFactory factory) {
         this.factory = factory;
 	this.outs = new BodyContentImpl[0];
-	this.attributes = new HashMap<String, Object>(16);
+	this.attributes = new PageAttributeMap();
 	this.depth = -1;
     }
 
@@ -210,25 +209,117 @@ public class PageContextImpl extends PageContext {
         }
         this.out = baseOut;
 
-        this.isNametableInitialized = false;
-        setAttribute(Constants.FIRST_REQUEST_SEEN, "true", APPLICATION_SCOPE);
+        this.overriddenImplicits = 0;
+        // A generated page notifies the application context only for its
+        // first request, so that later requests need not look it up
+        if (servlet instanceof HttpJspBase) {
+            HttpJspBase page = (HttpJspBase) servlet;
+            if (!page.isFirstRequestSeen()) {
+                getJspApplicationContext().setFirstRequestSeen();
+                page.setFirstRequestSeen();
+            }
+        } else {
+            getJspApplicationContext().setFirstRequestSeen();
+        }
 
     }
 
-    private void initializePageScopeNameTable() {
-        isNametableInitialized = true;
-        // register names/values as per spec
-        setAttribute(OUT, this.out);
-        setAttribute(REQUEST, request);
-        setAttribute(RESPONSE, response);
+    /*
+     * Returns the page-scope slot of the implicit object with the given
+     * attribute name, or -1 if the name is not that of an implicit object.
+     */
+    private static int getImplicitSlot(String name) {
+        switch (name) {
+        case OUT:
+            return 0;
+        case REQUEST:
+            return 1;
+        case RESPONSE:
+            return 2;
+        case SESSION:
+            return 3;
+        case PAGE:
+            return 4;
+        case CONFIG:
+            return 5;
+        case PAGECONTEXT:
+            return 6;
+        case APPLICATION:
+            return 7;
+        default:
+            return -1;
+        }
+    }
 
-        if (session != null)
-            setAttribute(SESSION, session);
+    private Object getImplicitObject(int slot) {
+        switch (slot) {
+        case 0:
+            return out;
+        case 1:
+            return request;
+        case 2:
+            return response;
+        case 3:
+            return session;
+        case 4:
+            return servlet;
+        case 5:
+            return config;
+        case 6:
+            return this;
+        default:
+            return context;
+        }
+    }
 
-        setAttribute(PAGE, servlet);
-        setAttribute(CONFIG, config);
-        setAttribute(PAGECONTEXT, this);
-        setAttribute(APPLICATION, context);
+    /*
+     * The implicit objects are not stored in the page scope, but computed
+     * from the fields of this PageContext, unless the application has set
+     * or removed a page-scope attribute of the same name.
+     */
+    private Object getPageAttribute(String name) {
+        int slot = getImplicitSlot(name);
+        if (slot >= 0 && (overriddenImplicits & (1 << slot)) == 0) {
+            return getImplicitObject(slot);
+        }
+        return attributes.get(name);
+    }
+
+    private void setPageAttribute(String name, Object value) {
+        int slot = getImplicitSlot(name);
+        if (slot >= 0) {
+            overriddenImplicits |= (1 << slot);
+        }
+        attributes.put(name, value);
+    }
+
+    private void removePageAttribute(String name) {
+        int slot = getImplicitSlot(name);
+        if (slot >= 0) {
+            overriddenImplicits |= (1 << slot);
+        }
+        attributes.remove(name);
+    }
+
+    private void resetImplicitOut() {
+        if ((overriddenImplicits & 1) != 0) {
+            overriddenImplicits &= ~1;
+            attributes.remove(OUT);
+        }
+    }
+
+    private Enumeration<String> getPageAttributeNames() {
+        String[] names = new String[IMPLICIT_OBJECT_COUNT + attributes.size()];
+        int n = 0;
+        for (int slot = 0; slot < IMPLICIT_OBJECT_COUNT; slot++) {
+            if ((overriddenImplicits & (1 << slot)) == 0
+                    && getImplicitObject(slot) != null) {
+                names[n++] = IMPLICIT_OBJECT_NAMES[slot];
+            }
+        }
+        attributes.copyKeys(names, n);
+        n += attributes.size();
+        return Collections.enumeration(Arrays.asList(names).subList(0, n));
     }
 
     public void release() {
@@ -255,9 +346,15 @@ public class PageContextImpl extends PageContext {
 	response = null;
         depth = -1;
 	baseOut.recycle();
+	// Return the buffers of the BodyContents to the shared pool, so
+	// that a pooled PageContext does not hold on to them
+	for (int i = 0; i < outs.length; i++) {
+	    outs[i].recycle();
+	}
 	session = null;
 
 	attributes.clear();
+        overriddenImplicits = 0;
     }
 
     public Object getAttribute(final String name) {
@@ -280,10 +377,7 @@ public class PageContextImpl extends PageContext {
     }
 
     private Object doGetAttribute(String name){
-        if (!isNametableInitialized) {
-            initializePageScopeNameTable();
-        }
-        return attributes.get(name);
+        return getPageAttribute(name);
     }
 
     public Object getAttribute(final String name, final int scope) {
@@ -308,10 +402,7 @@ public class PageContextImpl extends PageContext {
     private Object doGetAttribute(String name, int scope){
         switch (scope) {
             case PAGE_SCOPE:
-                if (!isNametableInitialized) {
-                    initializePageScopeNameTable();
-                }
-                return attributes.get(name);
+                return getPageAttribute(name);
 
             case REQUEST_SCOPE:
                 return request.getAttribute(name);
@@ -352,10 +443,7 @@ public class PageContextImpl extends PageContext {
 
     private void doSetAttribute(String name, Object attribute){
         if (attribute != null) {
-            if (!isNametableInitialized) {
-                initializePageScopeNameTable();
-            }
-            attributes.put(name, attribute);
+            setPageAttribute(name, attribute);
         } else {
             removeAttribute(name, PAGE_SCOPE);
         }
@@ -385,10 +473,7 @@ public class PageContextImpl extends PageContext {
         if (o != null) {
             switch (scope) {
             case PAGE_SCOPE:
-                if (!isNametableInitialized) {
-                    initializePageScopeNameTable();
-                }
-                attributes.put(name, o);
+                setPageAttribute(name, o);
                 break;
 
             case REQUEST_SCOPE:
@@ -436,10 +521,7 @@ public class PageContextImpl extends PageContext {
     private void doRemoveAttribute(String name, int scope){
         switch (scope) {
         case PAGE_SCOPE:
-            if (!isNametableInitialized) {
-                initializePageScopeNameTable();
-            }
-            attributes.remove(name);
+            removePageAttribute(name);
             break;
 
         case REQUEST_SCOPE:
@@ -483,11 +565,7 @@ public class PageContextImpl extends PageContext {
 
     private int doGetAttributeScope(String name){
 
-        if (!isNametableInitialized) {
-            initializePageScopeNameTable();
-        }
-
-        if (attributes.get(name) != null)
+        if (getPageAttribute(name) != null)
             return PAGE_SCOPE;
 
         if (request.getAttribute(name) != null)
@@ -533,11 +611,7 @@ public class PageContextImpl extends PageContext {
 
     private Object doFindAttribute(String name){
 
-        if (!isNametableInitialized) {
-            initializePageScopeNameTable();
-        }
-
-        Object o = attributes.get(name);
+        Object o = getPageAttribute(name);
         if (o != null)
             return o;
 
@@ -576,10 +650,7 @@ public class PageContextImpl extends PageContext {
     private Enumeration<String> doGetAttributeNamesInScope(int scope){
         switch (scope) {
         case PAGE_SCOPE:
-            if (!isNametableInitialized) {
-                initializePageScopeNameTable();
-            }
-            return Collections.enumeration(attributes.keySet());
+            return getPageAttributeNames();
             
         case REQUEST_SCOPE:
             return request.getAttributeNames();
@@ -707,31 +778,11 @@ public class PageContextImpl extends PageContext {
     }
 
     private ELResolver getELResolver() {
-                                                                                
+
         if (elResolver == null) {
-            // Create a CompositeELResolver
-            CompositeELResolver celResolver = new CompositeELResolver();
-                                                                                
-            celResolver.add(new ImplicitObjectELResolver());
-            // Add ELResolvers registered in JspApplicationContext
-            JspApplicationContextImpl jaContext = getJspApplicationContext();
-            Iterator<ELResolver> it = jaContext.getELResolvers();
-            while (it.hasNext()) {
-                celResolver.add(it.next());
-            }
-            ELResolver streamELResolver =
-                getExpressionFactory(this).getStreamELResolver();
-            if (streamELResolver != null) {
-                celResolver.add(streamELResolver);
-            }
-            celResolver.add(new StaticFieldELResolver());
-            celResolver.add(new MapELResolver());
-            celResolver.add(new ResourceBundleELResolver());
-            celResolver.add(new ListELResolver());
-            celResolver.add(new ArrayELResolver());
-            celResolver.add(new BeanELResolver());
-            celResolver.add(new ScopedAttributeELResolver());
-            elResolver = celResolver;
+            // The ELResolver chain is shared by all the PageContexts
+            // of the application
+            elResolver = getJspApplicationContext().getELResolver();
         }
         return elResolver;
     }
@@ -747,6 +798,15 @@ public class PageContextImpl extends PageContext {
         return elContext;
     }
 
+    /*
+     * Returns true if variables were set in the VariableMapper of the
+     * ELContext.  The ELContext is not created if it does not exist yet.
+     */
+    boolean hasELVariables() {
+        return elContext != null
+            && !((VariableMapperImpl) elContext.getVariableMapper()).isEmpty();
+    }
+
     JspApplicationContextImpl getJspApplicationContext() {
         if (jspApplicationContext == null) {
             jspApplicationContext =
@@ -801,12 +861,11 @@ public class PageContextImpl extends PageContext {
 	return (BodyContent) pushBody(null);
     }
 
-    // Note that there is a potential memory leak with way BodyContentImpl
-    // are pooled.  The "outs" array is extended in pushBody, but not shrinked
-    // in popBody; and BodyContentImpl.cb can gets arbritarily large.
+    // The "outs" array is extended in pushBody, but not shrinked in popBody.
+    // The buffers of the BodyContentImpls are trimmed when they are reused,
+    // and returned to the shared CharChunkPool in release(), so that the
+    // BodyContentImpls kept by a pooled PageContext stay small.
     // See https://glassfish.dev.java.net/issues/show_bug.cgi?id=8601
-    // Setting FactoryImpl.USE_POOL to false eliminates most of the leak,
-    // but not all -- kchung 6/29/2009
     public JspWriter pushBody(Writer writer) {
         depth++;
         if (depth >= outs.length) {
@@ -821,9 +880,9 @@ public class PageContextImpl extends PageContext {
 	outs[depth].setWriter(writer);
         out = outs[depth];
 
-	// Update the value of the "out" attribute in the page scope
-	// attribute namespace of this PageContext
-	setAttribute(OUT, out);
+	// The "out" attribute in the page scope attribute namespace of this
+	// PageContext now refers to the new value of out
+	resetImplicitOut();
 
         return outs[depth];
     }
@@ -836,9 +895,9 @@ public class PageContextImpl extends PageContext {
             out = baseOut;
         }
 
-	// Update the value of the "out" attribute in the page scope
-	// attribute namespace of this PageContext
-	setAttribute(OUT, out);
+	// The "out" attribute in the page scope attribute namespace of this
+	// PageContext now refers to the new value of out
+	resetImplicitOut();
 
         return out;
     }
@@ -963,6 +1022,24 @@ public class PageContextImpl extends PageContext {
         return pc.getJspApplicationContext().getExpressionFactory();
     }
 
+    /*
+     * Returns the ValueExpression for the given expression, parsing it only
+     * if it is not already in the cache of the JspApplicationContext.
+     */
+    private static ValueExpression createValueExpression(
+            ELContext elContext,
+            String expression,
+            Class expectedType,
+            PageContext pageContext) {
+
+        PageContextImpl pc =
+            (PageContextImpl) JspContextWrapper.getRootPageContext(pageContext);
+        JspApplicationContextImpl jaContext = pc.getJspApplicationContext();
+        return jaContext.getValueExpressionCache().get(
+            jaContext.getExpressionFactory(), elContext, expression,
+            expectedType);
+    }
+
     /**
      * Evaluates an EL expression
      *
@@ -988,12 +1065,11 @@ public class PageContextImpl extends PageContext {
                         ELContextImpl elContext =
                             (ELContextImpl) pageContext.getELContext();
                         elContext.setFunctionMapper(functionMap);
-                        ExpressionFactory expFactory = getExpressionFactory(pageContext);
-                        ValueExpression expr =
-                             expFactory.createValueExpression(
+                        ValueExpression expr = createValueExpression(
                                                    elContext,
                                                    expression,
-                                                   expectedType);
+                                                   expectedType,
+                                                   pageContext);
                         return expr.getValue(elContext);
                     }
                 });
@@ -1008,11 +1084,11 @@ public class PageContextImpl extends PageContext {
         } else {
             ELContextImpl elContext = (ELContextImpl)pageContext.getELContext();
             elContext.setFunctionMapper(functionMap);
-            ExpressionFactory expFactory = getExpressionFactory(pageContext);
-            ValueExpression expr = expFactory.createValueExpression(
+            ValueExpression expr = createValueExpression(
                                            elContext,
                                            expression,
-                                           expectedType);
+                                           expectedType,
+                                           pageContext);
             retValue = expr.getValue(elContext);
         }
 	return retValue;
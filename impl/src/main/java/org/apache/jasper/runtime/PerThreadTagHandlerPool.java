@@ -55,22 +55,33 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.jasper.runtime;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.JspTag;
 
 import org.apache.jasper.Constants;
+import org.glassfish.jsp.api.ResourceInjector;
 
 /**
  * Thread-local based pool of tag handlers that can be reused.
  *
+ * The per-thread data is only weakly referenced by the pool, so the
+ * handlers pooled by a thread that has terminated can be garbage collected.
+ * get() and reuse() only lock the per-thread data of the current thread,
+ * which is contended only while release() runs.  release() takes the
+ * handlers of all threads, destroys them, and drops the ThreadLocal, so
+ * that the worker threads keep no handler, and thus no class of the web
+ * application, alive.  Handlers returned after the release are destroyed.
+ *
  * @author Jan Luehe
  * @author Costin Manolache
  */
@@ -78,12 +89,15 @@ public class PerThreadTagHandlerPool extends TagHandlerPool {
 
     private int maxSize;
 
-    // For cleanup
-    private Vector<PerThreadData> perThreadDataVector;
+    // For cleanup: weak references to the PerThreadData of live threads
+    private Set<Reference<PerThreadData>> perThreadDataRefs;
+    private ReferenceQueue<PerThreadData> staleRefs;
 
-    private ThreadLocal<PerThreadData> perThread;
+    // null once the pool is released
+    private volatile ThreadLocal<PerThreadData> perThread;
 
     private static class PerThreadData {
+        // null once the handlers are taken by release()
         JspTag handlers[];
         int current;
     }
@@ -93,25 +107,31 @@ public class PerThreadTagHandlerPool extends TagHandlerPool {
      */
     public PerThreadTagHandlerPool() {
         super();
-        perThreadDataVector = new Vector<PerThreadData>();
+        perThreadDataRefs = Collections.newSetFromMap(
+            new ConcurrentHashMap<Reference<PerThreadData>, Boolean>());
+        staleRefs = new ReferenceQueue<PerThreadData>();
     }
 
     protected void init(ServletConfig config) {
-        maxSize = Constants.MAX_POOL_SIZE;
-        String maxSizeS = getOption(config, OPTION_MAXSIZE, null);
-        if (maxSizeS != null) {
-            maxSize = Integer.parseInt(maxSizeS);
-            if (maxSize < 0) {
-                maxSize = Constants.MAX_POOL_SIZE;
-            }
-        }
+        maxSize = getMaxSize(config);
+
+        this.resourceInjector = (ResourceInjector)
+            config.getServletContext().getAttribute(
+                Constants.JSP_RESOURCE_INJECTOR_CONTEXT_ATTRIBUTE);
 
         perThread = new ThreadLocal<PerThreadData>() {
             protected PerThreadData initialValue() {
                 PerThreadData ptd = new PerThreadData();
-                ptd.handlers = new Tag[maxSize];
+                ptd.handlers = new JspTag[maxSize];
                 ptd.current = -1;
-                perThreadDataVector.addElement(ptd);
+                expungeStaleRefs();
+                perThreadDataRefs.add(
+                    new WeakReference<PerThreadData>(ptd, staleRefs));
+                if (perThread == null) {
+                    // Released while registering: release() may not
+                    // have seen this data
+                    ptd.handlers = null;
+                }
                 return ptd;
             }
         };
@@ -127,50 +147,78 @@ public class PerThreadTagHandlerPool extends TagHandlerPool {
      *
      * @throws JspException if a tag handler cannot be instantiated
      */
-    public Tag get(Class handlerClass) throws JspException {
-        PerThreadData ptd = perThread.get();
-        if(ptd.current >=0 ) {
-            return ptd.handlers[ptd.current--];
-        } else {
-	    try {
-		return (Tag) handlerClass.newInstance();
-	    } catch (Exception e) {
-		throw new JspException(e.getMessage(), e);
-	    }
-	}
+    public <T extends JspTag> JspTag get(Class<T> handlerClass)
+            throws JspException {
+        ThreadLocal<PerThreadData> tl = perThread;
+        if (tl != null) {
+            PerThreadData ptd = tl.get();
+            synchronized (ptd) {
+                if (ptd.handlers != null && ptd.current >= 0) {
+                    JspTag handler = ptd.handlers[ptd.current];
+                    ptd.handlers[ptd.current--] = null;
+                    return handler;
+                }
+            }
+        }
+        return newTagHandler(handlerClass);
     }
 
     /**
      * Adds the given tag handler to this tag handler pool, unless this tag
-     * handler pool has already reached its capacity, in which case the tag
-     * handler's release() method is called.
+     * handler pool has already reached its capacity, or has been released,
+     * in which case the tag handler's release() method is called.
      *
-     * @param handler Tag handler to add to this tag handler pool
+     * @param handler JspTag handler to add to this tag handler pool
      */
-    public void reuse(Tag handler) {
-        PerThreadData ptd=perThread.get();
-	if (ptd.current < (ptd.handlers.length - 1)) {
-	    ptd.handlers[++ptd.current] = handler;
-        } else {
-            handler.release();
+    public void reuse(JspTag handler) {
+        ThreadLocal<PerThreadData> tl = perThread;
+        if (tl != null) {
+            PerThreadData ptd = tl.get();
+            synchronized (ptd) {
+                if (ptd.handlers != null
+                        && ptd.current < (ptd.handlers.length - 1)) {
+                    ptd.handlers[++ptd.current] = handler;
+                    return;
+                }
+            }
         }
+        destroyTagHandler(handler);
     }
 
     /**
-     * Calls the release() method of all tag handlers in this tag handler pool.
+     * Calls the release() method of all tag handlers in this tag handler
+     * pool, in the pools of all threads, and drops the per-thread pools.
      */
-    public void release() {        
-        Enumeration<PerThreadData> enumeration = perThreadDataVector.elements();
-        while (enumeration.hasMoreElements()) {
-	    PerThreadData ptd = enumeration.nextElement();
-            if (ptd.handlers != null) {
-                for (int i=ptd.current; i>=0; i--) {
-                    if (ptd.handlers[i] != null) {
-                        ptd.handlers[i].release();
-		    }
-                }
+    public void release() {
+        perThread = null;
+        for (Reference<PerThreadData> ref: perThreadDataRefs) {
+            PerThreadData ptd = ref.get();
+            if (ptd == null) {
+                continue;
+            }
+            JspTag[] handlers;
+            int current;
+            synchronized (ptd) {
+                handlers = ptd.handlers;
+                current = ptd.current;
+                ptd.handlers = null;
+                ptd.current = -1;
+            }
+            for (int i = current; i >= 0; i--) {
+                destroyTagHandler(handlers[i]);
             }
         }
+        perThreadDataRefs.clear();
+        expungeStaleRefs();
     }
-}
 
+    /*
+     * Forgets the PerThreadData of the threads that have terminated.
+     */
+    private void expungeStaleRefs() {
+        Reference<? extends PerThreadData> ref;
+        while ((ref = staleRefs.poll()) != null) {
+            perThreadDataRefs.remove(ref);
+        }
+    }
+}
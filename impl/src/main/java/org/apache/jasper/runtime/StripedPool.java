@@ -0,0 +1,188 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded pool of objects shared by all threads.
+ *
+ * The pool is split into stripes, about one per processor, each with its
+ * own monitor, and a thread always uses the stripe selected by its id, so
+ * threads running on different processors seldom contend for a lock.
+ * Unlike a per-thread pool, the number of pooled objects does not depend
+ * on the number of threads.  The hit and miss counts are kept per stripe,
+ * under its monitor, and only summed when read.
+ */
+final class StripedPool<T> {
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private static final class Stripe {
+        final Object[] elements;
+        int current = -1;
+        long hits;
+        long misses;
+
+        Stripe(int capacity) {
+            elements = new Object[capacity];
+        }
+    }
+
+    /**
+     * Creates a pool holding at most maxSize objects.  The capacity is
+     * divided among the stripes, and fewer stripes are used when maxSize
+     * is less than the number of processors, so that each stripe holds at
+     * least one object.  As a thread only uses its own stripe, the pool
+     * may create objects while other stripes still hold some, so the
+     * bound is on the pooled objects only.  The pool holds nothing if
+     * maxSize is not positive.
+     */
+    StripedPool(int maxSize) {
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors()
+                && count * 2 <= maxSize) {
+            count <<= 1;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            int capacity = 0;
+            if (maxSize > 0) {
+                capacity = maxSize / count + ((i < maxSize % count)? 1: 0);
+            }
+            stripes[i] = new Stripe(capacity);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Removes an object from the stripe of the current thread.
+     *
+     * @return The object, or null if that stripe is empty
+     */
+    @SuppressWarnings("unchecked")
+    T get() {
+        Stripe stripe = getStripe();
+        synchronized (stripe) {
+            if (stripe.current >= 0) {
+                T element = (T) stripe.elements[stripe.current];
+                stripe.elements[stripe.current--] = null;
+                stripe.hits++;
+                return element;
+            }
+            stripe.misses++;
+        }
+        return null;
+    }
+
+    /**
+     * Adds an object to the stripe of the current thread, unless that
+     * stripe is full.
+     *
+     * @return true if the object was added, false if the stripe is full
+     */
+    boolean put(T element) {
+        Stripe stripe = getStripe();
+        synchronized (stripe) {
+            if (stripe.current < (stripe.elements.length - 1)) {
+                stripe.elements[++stripe.current] = element;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empties all the stripes.
+     *
+     * @return The objects that were in the pool
+     */
+    @SuppressWarnings("unchecked")
+    List<T> clear() {
+        List<T> elements = new ArrayList<T>();
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                for (int i = stripe.current; i >= 0; i--) {
+                    elements.add((T) stripe.elements[i]);
+                    stripe.elements[i] = null;
+                }
+                stripe.current = -1;
+            }
+        }
+        return elements;
+    }
+
+    long getHitCount() {
+        long hits = 0;
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    long getMissCount() {
+        long misses = 0;
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                size += stripe.current + 1;
+            }
+        }
+        return size;
+    }
+
+    private Stripe getStripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.runtime;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.JspTag;
+
+import org.apache.jasper.Constants;
+import org.glassfish.jsp.api.ResourceInjector;
+
+/**
+ * Pool of tag handlers that is split into stripes, about one per processor,
+ * each with its own monitor.  A thread always uses the same stripe, so
+ * threads running on different processors seldom contend for a lock.
+ *
+ * The pool is selected with the tagpoolClassName option.  The capacity
+ * given by tagpoolMaxSize is divided among the stripes, and fewer stripes
+ * are used when it is less than the number of processors, so that at most
+ * tagpoolMaxSize handlers are pooled.
+ */
+public class StripedTagHandlerPool extends TagHandlerPool {
+
+    private StripedPool<JspTag> handlers;
+
+    /**
+     * Constructs a tag handler pool with the default capacity.
+     */
+    public StripedTagHandlerPool() {
+        super();
+    }
+
+    protected void init(ServletConfig config) {
+        handlers = new StripedPool<JspTag>(getMaxSize(config));
+
+        this.resourceInjector = (ResourceInjector)
+            config.getServletContext().getAttribute(
+                Constants.JSP_RESOURCE_INJECTOR_CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the next available tag handler from the stripe of the current
+     * thread, instantiating one if that stripe is empty.
+     *
+     * @param handlerClass Tag handler class
+     *
+     * @return Reused or newly instantiated tag handler
+     *
+     * @throws JspException if a tag handler cannot be instantiated
+     */
+    public <T extends JspTag> JspTag get(Class<T> handlerClass)
+            throws JspException {
+        JspTag handler = handlers.get();
+        if (handler != null) {
+            return handler;
+        }
+        return newTagHandler(handlerClass);
+    }
+
+    /**
+     * Adds the given tag handler to the stripe of the current thread,
+     * unless that stripe is full, in which case the tag handler is
+     * released and its PreDestroy methods are called.
+     *
+     * @param handler JspTag handler to add to this tag handler pool
+     */
+    public void reuse(JspTag handler) {
+        if (!handlers.put(handler)) {
+            destroyTagHandler(handler);
+        }
+    }
+
+    /**
+     * Releases all available tag handlers in this tag handler pool.
+     */
+    public void release() {
+        for (JspTag handler: handlers.clear()) {
+            destroyTagHandler(handler);
+        }
+    }
+}
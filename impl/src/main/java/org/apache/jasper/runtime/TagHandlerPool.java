@@ -76,7 +76,7 @@ public class TagHandlerPool {
     public static final String OPTION_MAXSIZE="tagpoolMaxSize";
 
     private JspTag[] handlers;
-    private ResourceInjector resourceInjector;
+    protected ResourceInjector resourceInjector;
 
     // index of next available tag handler
     private int current;
@@ -102,6 +102,19 @@ public class TagHandlerPool {
     }
 
     protected void init( ServletConfig config ) {
+        this.handlers = new JspTag[getMaxSize(config)];
+        this.current = -1;
+
+        this.resourceInjector = (ResourceInjector)
+            config.getServletContext().getAttribute(
+                Constants.JSP_RESOURCE_INJECTOR_CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Returns the pool capacity given by the tagpoolMaxSize option, or
+     * the default capacity if the option is not set or not valid.
+     */
+    protected static int getMaxSize( ServletConfig config ) {
         int maxSize=-1;
         String maxSizeS=getOption(config, OPTION_MAXSIZE, null);
         if( maxSizeS != null ) {
@@ -114,12 +127,7 @@ public class TagHandlerPool {
         if( maxSize <0  ) {
             maxSize=Constants.MAX_POOL_SIZE;
         }
-        this.handlers = new JspTag[maxSize];
-        this.current = -1;
-
-        this.resourceInjector = (ResourceInjector)
-            config.getServletContext().getAttribute(
-                Constants.JSP_RESOURCE_INJECTOR_CONTEXT_ATTRIBUTE);
+        return maxSize;
     }
 
     /**
@@ -161,6 +169,21 @@ public class TagHandlerPool {
 
         // Out of sync block - there is no need for other threads to
         // wait for us to construct a tag for this thread.
+        return newTagHandler(handlerClass);
+    }
+
+    /**
+     * Instantiates a tag handler, through the ResourceInjector if there
+     * is one.
+     *
+     * @param handlerClass Tag handler class
+     *
+     * @return Newly instantiated tag handler
+     *
+     * @throws JspException if a tag handler cannot be instantiated
+     */
+    protected <T extends JspTag> JspTag newTagHandler(Class<T> handlerClass)
+            throws JspException {
         JspTag tagHandler = null;
         try {
             if (resourceInjector != null) {
@@ -176,6 +199,22 @@ public class TagHandlerPool {
         return tagHandler;
     }
 
+    /**
+     * Calls the release() method of the given tag handler, and its
+     * PreDestroy methods if there is a ResourceInjector.
+     *
+     * @param handler JspTag handler that is no longer pooled
+     */
+    protected void destroyTagHandler(JspTag handler) {
+        if (handler instanceof Tag) {
+            ((Tag)handler).release();
+        }
+
+        if (resourceInjector != null) {
+            resourceInjector.preDestroy(handler);
+        }
+    }
+
     /**
      * Adds the given tag handler to this tag handler pool, unless this tag
      * handler pool has already reached its capacity, in which case the tag
@@ -191,13 +230,7 @@ public class TagHandlerPool {
             }
         }
         // There is no need for other threads to wait for us to release
-        if (handler instanceof Tag) {
-            ((Tag)handler).release();
-        }
-
-        if (resourceInjector != null) {
-            resourceInjector.preDestroy(handler);
-        }
+        destroyTagHandler(handler);
     }
 
     /**
@@ -206,12 +239,7 @@ public class TagHandlerPool {
      */
     public synchronized void release() {
 	for (int i=current; i>=0; i--) {
-            if (handlers[i] instanceof Tag) {
-                ((Tag)handlers[i]).release();
-            }
-            if (resourceInjector != null) {
-                resourceInjector.preDestroy(handlers[i]);
-            }
+            destroyTagHandler(handlers[i]);
 	}
     }
 
@@ -0,0 +1,283 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+package org.apache.jasper.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.jasper.runtime.TldScanner.TldInfo;
+
+/**
+ * An index of the TLDs found in jar files, saved in the scratch directory
+ * of the web application so that it survives restarts.
+ *
+ * Each entry is keyed by the URL of a jar file on the file system, and
+ * holds the size and modification time the jar file had when it was
+ * scanned.  An entry is only used if the jar file still has the same size
+ * and modification time.  The entries of jar files that no longer exist,
+ * or that are no longer part of the web application, are dropped when the
+ * index is saved.
+ */
+final class TldIndex {
+
+    private static final Logger log =
+        Logger.getLogger(TldIndex.class.getName());
+
+    private static final String INDEX_FILE_NAME = "tld-index.dat";
+
+    // Changed whenever the format of the index file changes
+    private static final int VERSION = 1;
+
+    private final File indexFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean modified;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final TldInfo[] tldInfos;
+
+        Entry(long size, long lastModified, TldInfo[] tldInfos) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.tldInfos = tldInfos;
+        }
+    }
+
+    /**
+     * Loads the index from the given scratch directory.  A missing or
+     * unreadable index file results in an empty index.
+     */
+    TldIndex(File scratchDir) {
+        indexFile = new File(scratchDir, INDEX_FILE_NAME);
+        if (!indexFile.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String jarPath = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                TldInfo[] tldInfos = new TldInfo[in.readInt()];
+                for (int j = 0; j < tldInfos.length; j++) {
+                    String uri = in.readBoolean()? in.readUTF(): null;
+                    String entryName = in.readUTF();
+                    String[] listeners = new String[in.readInt()];
+                    for (int k = 0; k < listeners.length; k++) {
+                        listeners[k] = in.readUTF();
+                    }
+                    tldInfos[j] = new TldInfo(uri, entryName, listeners);
+                }
+                entries.put(jarPath,
+                            new Entry(size, lastModified, tldInfos));
+            }
+        } catch (IOException ex) {
+            entries.clear();
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Ignoring tld index " + indexFile, ex);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the TLDs recorded for the given jar file, if the jar file has
+     * not changed since it was recorded.
+     *
+     * @param resourcePath The URL of the jar file
+     * @return The TLDs in the jar file, or null if unknown
+     */
+    TldInfo[] get(String resourcePath) {
+        Entry entry = entries.get(resourcePath);
+        if (entry == null) {
+            return null;
+        }
+        File jar = getFile(resourcePath);
+        if (jar == null || jar.length() != entry.size
+                || jar.lastModified() != entry.lastModified) {
+            return null;
+        }
+        return entry.tldInfos;
+    }
+
+    /**
+     * Records the TLDs found in the given jar file.
+     */
+    void put(String resourcePath, TldInfo[] tldInfos) {
+        File jar = getFile(resourcePath);
+        if (jar == null || !jar.isFile()) {
+            return;
+        }
+        entries.put(resourcePath,
+                    new Entry(jar.length(), jar.lastModified(), tldInfos));
+        modified = true;
+    }
+
+    /**
+     * Writes the index to its file, if it has been modified.  The index is
+     * written to a temporary file first, so that a concurrent reader never
+     * sees a partial index.
+     *
+     * @param resourcePaths The URLs of the jar files of the current scan.
+     * The entries of the other jar files, and of the jar files that no
+     * longer exist, are removed.
+     */
+    void save(Set<String> resourcePaths) {
+        Iterator<String> iter = entries.keySet().iterator();
+        while (iter.hasNext()) {
+            String resourcePath = iter.next();
+            File jar = resourcePaths.contains(resourcePath)?
+                getFile(resourcePath): null;
+            if (jar == null || !jar.isFile()) {
+                iter.remove();
+                modified = true;
+            }
+        }
+        if (!modified) {
+            return;
+        }
+        File tmpFile = null;
+        DataOutputStream out = null;
+        try {
+            // A unique temporary file, so that concurrent saves from several
+            // web applications sharing the scratch directory do not collide
+            tmpFile = File.createTempFile(INDEX_FILE_NAME, ".tmp",
+                                          indexFile.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e: entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.tldInfos.length);
+                for (TldInfo tldInfo: entry.tldInfos) {
+                    out.writeBoolean(tldInfo.getUri() != null);
+                    if (tldInfo.getUri() != null) {
+                        out.writeUTF(tldInfo.getUri());
+                    }
+                    out.writeUTF(tldInfo.getEntryName());
+                    out.writeInt(tldInfo.getListeners().length);
+                    for (String listener: tldInfo.getListeners()) {
+                        out.writeUTF(listener);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+            modified = false;
+        } catch (IOException ex) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Unable to save tld index " + indexFile,
+                        ex);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static File getFile(String resourcePath) {
+        try {
+            URL url = new URL(resourcePath);
+            if (!"file".equals(url.getProtocol())) {
+                return null;
+            }
+            try {
+                return new File(url.toURI());
+            } catch (URISyntaxException ex) {
+                return new File(url.getPath());
+            }
+        } catch (IOException ex) {
+            return null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+}
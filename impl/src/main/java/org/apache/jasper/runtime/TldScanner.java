@@ -71,7 +71,9 @@ import java.net.URLConnection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -160,6 +162,17 @@ public class TldScanner implements ServletContainerInitializer {
     private static Map<String, TldInfo[]> jarTldCache =
         new ConcurrentHashMap<String, TldInfo[]>();
 
+    // If true, the TLDs found in jar files are recorded in an index file in
+    // the scratch directory, and jar files that have not changed since are
+    // not scanned again when the web application is restarted
+    private static final boolean USE_TLD_INDEX = Boolean.getBoolean(
+        "org.apache.jasper.runtime.TldScanner.USE_TLD_INDEX");
+
+    // Maximum number of threads used to scan jar files for TLDs
+    private static final int SCAN_THREADS = Integer.getInteger(
+        "org.apache.jasper.runtime.TldScanner.SCAN_THREADS",
+        Runtime.getRuntime().availableProcessors());
+
     private static final String EAR_LIB_CLASSLOADER =
         "org.glassfish.javaee.full.deployment.EarLibClassLoader";
 
@@ -268,7 +281,8 @@ public class TldScanner implements ServletContainerInitializer {
      */
 
     @SuppressWarnings("unchecked")
-    public String[] getLocation(String uri) throws JasperException {
+    public synchronized String[] getLocation(String uri)
+            throws JasperException {
 
         if (mappings == null) {
             // Recovering the map done in onStart.
@@ -408,96 +422,123 @@ public class TldScanner implements ServletContainerInitializer {
     }
 
     /**
-     * Scans the given JarURLConnection for TLD files located in META-INF
-     * (or a subdirectory of it).  If the scanning in is done as part of the
-     * ServletContextInitializer, the listeners in the tlds in this jar file
-     * are added to the servlet context, and for any  TLD that has a <uri>
-     * element, an implicit map entry is added to the taglib map.
+     * Scans the JAR files of the given JarScans for TLD files, and for each
+     * JarScan, in order, adds the listeners in its TLDs to the servlet
+     * context if the scanning is done as part of the
+     * ServletContainerInitializer, and adds an implicit map entry to the
+     * taglib map for any TLD that has a <uri> element.
      *
-     * @param conn The JarURLConnection to the JAR file to scan
-     * @param tldNames the list of tld element to scan. The null value
-     *         indicates all the tlds in this case.
-     * @param isLocal True if the jar file is under WEB-INF
-     *         false otherwise
+     * The JAR files that are not in the cache are read and their TLDs
+     * parsed concurrently, by up to SCAN_THREADS threads.  The results are
+     * merged in the order of the given list, so the resulting taglib map
+     * and listener order do not depend on thread scheduling.
      */
-    private void scanJar(JarURLConnection conn, List<String> tldNames,
-                         boolean isLocal)
-            throws JasperException {
-
-        String resourcePath = conn.getJarFileURL().toString();
-        TldInfo[] tldInfos = jarTldCacheLocal.get(resourcePath);
-
-        // Optimize for most common cases: jars known to NOT have tlds
-        if (tldInfos != null && tldInfos.length == 0) {
+    private void scanJars(List<JarScan> jarScans) throws JasperException {
+
+        long start = System.currentTimeMillis();
+
+        TldIndex tldIndex = getTldIndex();
+
+        // Read each jar that is not in the cache, or in the index, once
+        List<JarScan> pending = new ArrayList<JarScan>();
+        Set<String> pendingPaths = new HashSet<String>();
+        Set<String> resourcePaths = new HashSet<String>();
+        for (JarScan jarScan: jarScans) {
+            resourcePaths.add(jarScan.resourcePath);
+            if (!jarTldCacheLocal.containsKey(jarScan.resourcePath)
+                    && pendingPaths.add(jarScan.resourcePath)) {
+                if (tldIndex != null && jarScan.tldNames == null) {
+                    TldInfo[] tldInfos = tldIndex.get(jarScan.resourcePath);
+                    if (tldInfos != null) {
+                        jarScan.tldInfos = tldInfos;
+                        jarScan.scanned = true;
+                        jarScan.indexed = true;
+                        continue;
+                    }
+                }
+                pending.add(jarScan);
+            }
+        }
+        if (SCAN_THREADS > 1 && pending.size() > 1) {
+            ForkJoinPool pool =
+                new ForkJoinPool(Math.min(SCAN_THREADS, pending.size()));
             try {
-                conn.getJarFile().close();
-            } catch (IOException ex) {
-                //ignored
+                pool.invokeAll(pending);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (JarScan jarScan: pending) {
+                jarScan.call();
             }
-            return;
         }
 
-        // scan the tld if the jar has not been cached.
-        if (tldInfos == null) {
-            JarFile jarFile = null;
-            ArrayList<TldInfo> tldInfoA = new ArrayList<TldInfo>();
-            try {
-                jarFile = conn.getJarFile();
-                if (tldNames != null) {
-                    for (String tldName : tldNames) {
-                        JarEntry entry = jarFile.getJarEntry(tldName);
-                        InputStream stream = jarFile.getInputStream(entry);
-                        tldInfoA.add(scanTld(resourcePath, tldName, stream));
+        for (JarScan jarScan: jarScans) {
+            String resourcePath = jarScan.resourcePath;
+            TldInfo[] tldInfos;
+            if (jarScan.scanned) {
+                if (jarScan.failure instanceof JasperException) {
+                    throw (JasperException) jarScan.failure;
+                } else if (jarScan.failure instanceof RuntimeException) {
+                    throw (RuntimeException) jarScan.failure;
+                } else if (jarScan.failure != null) {
+                    throw (Error) jarScan.failure;
+                }
+                if (jarScan.indexed) {
+                    if (jarScan.isLocal) {
+                        // Close the jar file opened for its manifest
+                        try {
+                            jarScan.conn.getJarFile().close();
+                        } catch (IOException ex) {
+                            //ignored
+                        }
                     }
                 } else {
-                    Enumeration<JarEntry> entries = jarFile.entries();
-                    while (entries.hasMoreElements()) {
-                        JarEntry entry = entries.nextElement();
-                        String name = entry.getName();
-                        if (!name.startsWith("META-INF/")) continue;
-                        if (!name.endsWith(".tld")) continue;
-                        InputStream stream = jarFile.getInputStream(entry);
-                        tldInfoA.add(scanTld(resourcePath, name, stream));
+                    if (log.isLoggable(Level.FINE)) {
+                        log.fine("Scanned " + resourcePath + " for tlds in " +
+                                 jarScan.scanTime + " ms");
                     }
-                }
-            } catch (IOException ex) {
-                if (resourcePath.startsWith(FILE_PROTOCOL) &&
-                        !((new File(resourcePath)).exists())) {
-                    if (log.isLoggable(Level.WARNING)) {
-                        log.log(Level.WARNING,
-                            Localizer.getMessage("jsp.warn.nojar",
-                                                 resourcePath),
-                            ex);
+                    if (tldIndex != null && jarScan.tldNames == null) {
+                        tldIndex.put(resourcePath, jarScan.tldInfos);
                     }
-                } else {
-                    throw new JasperException(
-                        Localizer.getMessage("jsp.error.jar.io", resourcePath),
-                        ex);
                 }
-            } finally {
-                if (jarFile != null) {
+                // Update the jar TLD cache
+                tldInfos = jarScan.tldInfos;
+                jarTldCacheLocal.put(resourcePath, tldInfos);
+                if (!jarScan.isLocal) {
+                    // Also update the global cache;
+                    jarTldCache.put(resourcePath, tldInfos);
+                }
+            } else {
+                tldInfos = jarTldCacheLocal.get(resourcePath);
+                // Optimize for most common cases: jars known to NOT have tlds
+                if (tldInfos.length == 0) {
                     try {
-                        jarFile.close();
-                    } catch (Throwable t) {
-                        // ignore
+                        jarScan.conn.getJarFile().close();
+                    } catch (IOException ex) {
+                        //ignored
                     }
+                    continue;
                 }
             }
-            // Update the jar TLD cache
-            tldInfos = tldInfoA.toArray(new TldInfo[tldInfoA.size()]);
-            jarTldCacheLocal.put(resourcePath, tldInfos);
-            if (!isLocal) {
-                // Also update the global cache;
-                jarTldCache.put(resourcePath, tldInfos);
+
+            // Iterate over tldinfos to add listeners or to map tldlocations
+            for (TldInfo tldInfo: tldInfos) {
+                if (scanListeners) {
+                    addListener(tldInfo, jarScan.isLocal);
+                }
+                mapTldLocation(resourcePath, tldInfo, jarScan.isLocal);
             }
         }
 
-        // Iterate over tldinfos to add listeners or to map tldlocations
-        for (TldInfo tldInfo: tldInfos) {
-            if (scanListeners) {
-                addListener(tldInfo, isLocal);
-            }
-            mapTldLocation(resourcePath, tldInfo, isLocal);
+        if (tldIndex != null) {
+            tldIndex.save(resourcePaths);
+        }
+
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Scanned " + pending.size() + " of " + jarScans.size() +
+                     " jars for tlds in " +
+                     (System.currentTimeMillis() - start) + " ms");
         }
     }
 
@@ -668,6 +709,9 @@ public class TldScanner implements ServletContainerInitializer {
         Boolean isStandalone = (Boolean)
             ctxt.getAttribute(IS_STANDALONE_ATTRIBUTE_NAME);
 
+        // The jars to scan, in the order their tlds are to be processed
+        List<JarScan> jarScans = new ArrayList<JarScan>();
+
         while (loader != null) {
             if (loader instanceof URLClassLoader) {
                 boolean isLocal = (loader == webappLoader);
@@ -694,7 +738,7 @@ public class TldScanner implements ServletContainerInitializer {
                             // Manifest Class-Path, to be scanned later.
                             addManifestClassPath(null, extraJars, jconn);
                         }
-                        scanJar(jconn, null, isLocal);
+                        jarScans.add(new JarScan(jconn, null, isLocal));
                     }
                 }
 
@@ -710,7 +754,7 @@ public class TldScanner implements ServletContainerInitializer {
                                     (JarURLConnection) jarURL.openConnection();
                             jconn.setUseCaches(false);
                             if (addManifestClassPath(extraJars,newJars,jconn)){
-                                scanJar(jconn, null, true);
+                                jarScans.add(new JarScan(jconn, null, true));
                             }
                         }
                         extraJars.addAll(newJars);
@@ -737,10 +781,29 @@ public class TldScanner implements ServletContainerInitializer {
         if (tldMap != null) {
             for (URI uri : tldMap.keySet()) {
                 URL jarURL = new URL("jar:" + uri.toString() + "!/");
-                scanJar((JarURLConnection)jarURL.openConnection(),
-                        tldMap.get(uri), false);
+                jarScans.add(new JarScan(
+                    (JarURLConnection)jarURL.openConnection(),
+                    tldMap.get(uri), false));
             }
         }
+
+        scanJars(jarScans);
+    }
+
+    /*
+     * Gets the index of the TLDs in jar files, kept in the scratch
+     * directory of the web application, or null if the index is not used.
+     */
+    private TldIndex getTldIndex() {
+        if (!USE_TLD_INDEX) {
+            return null;
+        }
+        Object scratchDir = ctxt.getAttribute(Constants.TMP_DIR);
+        if (!(scratchDir instanceof File)
+                || !((File) scratchDir).isDirectory()) {
+            return null;
+        }
+        return new TldIndex((File) scratchDir);
     }
 
     /*
@@ -799,6 +862,92 @@ public class TldScanner implements ServletContainerInitializer {
         return true;
     }
 
+    /*
+     * The scanning of the TLDs in one jar file.  The jar file is read, and
+     * its TLDs parsed, by call(), which may run in a pool thread; the
+     * results are then processed by scanJars(List).
+     */
+    private class JarScan implements Callable<Void> {
+        final JarURLConnection conn;
+        final List<String> tldNames;  // null means all the tlds in the jar
+        final boolean isLocal;        // true if the jar is under WEB-INF
+        final String resourcePath;
+
+        boolean scanned;
+        boolean indexed;              // true if found in the TldIndex
+        TldInfo[] tldInfos;
+        Throwable failure;
+        long scanTime;
+
+        JarScan(JarURLConnection conn, List<String> tldNames,
+                boolean isLocal) {
+            this.conn = conn;
+            this.tldNames = tldNames;
+            this.isLocal = isLocal;
+            this.resourcePath = conn.getJarFileURL().toString();
+        }
+
+        public Void call() {
+            long start = System.currentTimeMillis();
+            try {
+                tldInfos = scanJar();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            scanTime = System.currentTimeMillis() - start;
+            scanned = true;
+            return null;
+        }
+
+        private TldInfo[] scanJar() throws JasperException {
+            JarFile jarFile = null;
+            ArrayList<TldInfo> tldInfoA = new ArrayList<TldInfo>();
+            try {
+                jarFile = conn.getJarFile();
+                if (tldNames != null) {
+                    for (String tldName : tldNames) {
+                        JarEntry entry = jarFile.getJarEntry(tldName);
+                        InputStream stream = jarFile.getInputStream(entry);
+                        tldInfoA.add(scanTld(resourcePath, tldName, stream));
+                    }
+                } else {
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (!name.startsWith("META-INF/")) continue;
+                        if (!name.endsWith(".tld")) continue;
+                        InputStream stream = jarFile.getInputStream(entry);
+                        tldInfoA.add(scanTld(resourcePath, name, stream));
+                    }
+                }
+            } catch (IOException ex) {
+                if (resourcePath.startsWith(FILE_PROTOCOL) &&
+                        !((new File(resourcePath)).exists())) {
+                    if (log.isLoggable(Level.WARNING)) {
+                        log.log(Level.WARNING,
+                            Localizer.getMessage("jsp.warn.nojar",
+                                                 resourcePath),
+                            ex);
+                    }
+                } else {
+                    throw new JasperException(
+                        Localizer.getMessage("jsp.error.jar.io", resourcePath),
+                        ex);
+                }
+            } finally {
+                if (jarFile != null) {
+                    try {
+                        jarFile.close();
+                    } catch (Throwable t) {
+                        // ignore
+                    }
+                }
+            }
+            return tldInfoA.toArray(new TldInfo[tldInfoA.size()]);
+        }
+    }
+
     static class TldInfo {
         private String entryName;        // The name of the tld file
         private String uri;              // The uri name for the tld
@@ -0,0 +1,144 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 1997-2013 Oracle and/or its affiliates. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common Development
+ * and Distribution License("CDDL") (collectively, the "License").  You
+ * may not use this file except in compliance with the License.  You can
+ * obtain a copy of the License at
+ * https://glassfish.dev.java.net/public/CDDL+GPL_1_1.html
+ * or packager/legal/LICENSE.txt.  See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing the software, include this License Header Notice in each
+ * file and include the License file at packager/legal/LICENSE.txt.
+ *
+ * GPL Classpath Exception:
+ * Oracle designates this particular file as subject to the "Classpath"
+ * exception as provided by Oracle in the GPL Version 2 section of the License
+ * file that accompanied this code.
+ *
+ * Modifications:
+ * If applicable, add the following below the License Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyright [year] [name of copyright owner]"
+ *
+ * Contributor(s):
+ * If you wish your version of this file to be governed by only the CDDL or
+ * only the GPL Version 2, indicate your decision by adding "[Contributor]
+ * elects to include this software in this distribution under the [CDDL or GPL
+ * Version 2] license."  If you don't indicate a single choice of license, a
+ * recipient has the option to distribute your version of this file under
+ * either the CDDL, the GPL Version 2 or to extend the choice of license to
+ * its licensees as provided above.  However, if you add GPL Version 2 code
+ * and therefore, elected the GPL Version 2 license, then the option applies
+ * only if the new code is made subject to such option by the copyright
+ * holder.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.el.ELContext;
+import javax.el.ExpressionFactory;
+import javax.el.FunctionMapper;
+import javax.el.ValueExpression;
+
+/**
+ * A bounded cache of the ValueExpressions created for the EL expressions
+ * in the generated pages, so that an expression is parsed once instead of
+ * on every evaluation.
+ *
+ * The entries are keyed by the expression text, the expected type and the
+ * identity of the function mapper, since functions are resolved when the
+ * expression is created.  Variables from a VariableMapper are also resolved
+ * at creation time, so an expression is only cached when the variable mapper
+ * in the ELContext is empty.
+ *
+ * The cache belongs to a JspApplicationContextImpl and is cleared when its
+ * ExpressionFactory is replaced.  When the cache is full it is simply
+ * emptied, which keeps the lookups lock free.
+ */
+final class ValueExpressionCache {
+
+    private static final int MAX_SIZE = Integer.getInteger(
+        "org.apache.jasper.runtime.ValueExpressionCache.MAX_SIZE", 5000);
+
+    private final ConcurrentHashMap<Key, ValueExpression> cache =
+        new ConcurrentHashMap<Key, ValueExpression>();
+
+    /**
+     * Returns a ValueExpression for the given expression, creating it with
+     * the given ExpressionFactory if it is not already in the cache.
+     */
+    ValueExpression get(ExpressionFactory expFactory,
+                        ELContext elContext,
+                        String expression,
+                        Class<?> expectedType) {
+
+        if (MAX_SIZE <= 0 || !isCacheable(elContext)) {
+            return expFactory.createValueExpression(elContext, expression,
+                                                    expectedType);
+        }
+
+        Key key = new Key(expression, expectedType,
+                          elContext.getFunctionMapper());
+        ValueExpression expr = cache.get(key);
+        if (expr == null) {
+            expr = expFactory.createValueExpression(elContext, expression,
+                                                    expectedType);
+            if (cache.size() >= MAX_SIZE) {
+                cache.clear();
+            }
+            cache.put(key, expr);
+        }
+        return expr;
+    }
+
+    void clear() {
+        cache.clear();
+    }
+
+    private static boolean isCacheable(ELContext elContext) {
+        return (elContext.getVariableMapper() instanceof VariableMapperImpl)
+            && ((VariableMapperImpl) elContext.getVariableMapper()).isEmpty();
+    }
+
+    private static final class Key {
+
+        private final String expression;
+        private final Class<?> expectedType;
+        private final FunctionMapper fnMapper;
+        private final int hash;
+
+        Key(String expression, Class<?> expectedType,
+            FunctionMapper fnMapper) {
+            this.expression = expression;
+            this.expectedType = expectedType;
+            this.fnMapper = fnMapper;
+            this.hash = expression.hashCode() * 31
+                        + System.identityHashCode(expectedType) * 17
+                        + System.identityHashCode(fnMapper);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return expectedType == other.expectedType
+                && fnMapper == other.fnMapper
+                && expression.equals(other.expression);
+        }
+    }
+}
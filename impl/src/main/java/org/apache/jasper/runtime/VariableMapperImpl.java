@@ -105,5 +105,12 @@ public class VariableMapperImpl extends VariableMapper
         return prev;
     }
 
+    /**
+     * Returns true if no variables have been set in this mapper.
+     */
+    boolean isEmpty() {
+        return map.isEmpty();
+    }
+
     private HashMap<String, ValueExpression> map;
 }
@@ -89,6 +89,12 @@ public final class SecurityClassLoad {
 
             loader.loadClass( basePackage +
                 "runtime.JspRuntimeLibrary");
+            loader.loadClass( basePackage +
+                "runtime.JspRuntimeLibrary$1");
+            loader.loadClass( basePackage +
+                "runtime.JspRuntimeLibrary$BeanProperties");
+            loader.loadClass( basePackage +
+                "runtime.JspRuntimeLibrary$PropertyInfo");
             loader.loadClass( basePackage +
                 "runtime.JspRuntimeLibrary$PrivilegedIntrospectHelper");
             
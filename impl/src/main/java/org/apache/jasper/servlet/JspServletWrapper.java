@@ -64,6 +64,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -109,7 +110,7 @@ public class JspServletWrapper {
     private static Logger log =
             Logger.getLogger(JspServletWrapper.class.getName());
 
-    private Servlet theServlet;
+    private volatile Servlet theServlet;
     private String jspUri;
     private Class servletClass;
     private Class tagHandlerClass;
@@ -117,20 +118,28 @@ public class JspServletWrapper {
     private long available = 0L;
     private ServletConfig config;
     private Options options;
-    private boolean firstTime = true;
-    private boolean reload = true;
+    private volatile boolean firstTime = true;
+    private volatile boolean reload = true;
     private boolean isTagFile;
     private int tripCount;
-    private JasperException compileException;
+    // Requests serviced since the last background compile check.  Not
+    // volatile, so that counting costs a plain write per request: updates
+    // may be lost or seen late, which is fine as this only orders the
+    // recompilations.
+    private int requestCount;
+    private volatile JasperException compileException;
     private JspProbeEmitter jspProbeEmitter;
     /* PWC 6468930
     private long servletClassLastModifiedTime;
     */
     // START PWC 6468930
-    private long servletClassLastModifiedTime = 0L;
+    private volatile long servletClassLastModifiedTime = 0L;
     private File jspFile = null;
     // END PWC 6468930
-    private long lastModificationTest = 0L;
+    private volatile long lastModificationTest = 0L;
+    // Set while one request thread checks or recompiles this page in
+    // development mode, so that concurrent requests keep being served
+    private final AtomicBoolean compiling = new AtomicBoolean();
 
     /*
      * JspServletWrapper for JSP pages.
@@ -195,19 +204,23 @@ public class JspServletWrapper {
                 // Synchronizing on jsw enables simultaneous loading
                 // of different pages, but not the same page.
                 if (reload) {
-                    // This is to maintain the original protocol.
-                    destroy();
-                    
+                    Servlet servlet;
                     try {
                         servletClass = ctxt.load();
-                        theServlet = (Servlet) servletClass.newInstance();
+                        servlet = (Servlet) servletClass.newInstance();
                     } catch( IllegalAccessException ex1 ) {
                         throw new JasperException( ex1 );
                     } catch( InstantiationException ex ) {
                         throw new JasperException( ex );
                     }
                     
-                    theServlet.init(config);
+                    servlet.init(config);
+
+                    // Swap in the new instance before destroying the old
+                    // one, so that concurrent requests never see a
+                    // half-initialized servlet.
+                    destroy();
+                    theServlet = servlet;
 
                     if (!firstTime) {
                         ctxt.getRuntimeContext().incrementJspReloadCount();
@@ -327,10 +340,26 @@ public class JspServletWrapper {
 	return null;
     }
 
+    /**
+     * Returns true if the servlet instance has been created.
+     */
+    public boolean isServletLoaded() {
+        return theServlet != null;
+    }
+
     public boolean isTagFile() {
 	return this.isTagFile;
     }
 
+    /**
+     * Returns the number of requests serviced since the previous call.
+     */
+    public int takeRequestCount() {
+        int count = requestCount;
+        requestCount = 0;
+        return count;
+    }
+
     public int incTripCount() {
 	return tripCount++;
     }
@@ -365,15 +394,21 @@ public class JspServletWrapper {
             // if (options.getDevelopment() || firstTime) {
             // END S1AS 6181923
             // BEGIN S1AS 6181923
-            if (!options.getUsePrecompiled()
-                    && (options.getDevelopment() || firstTime)) {
+            if (!options.getUsePrecompiled() && firstTime) {
             // END S1AS 6181923
                 synchronized (this) {
-                    firstTime = false;
+                    if (firstTime) {
+                        firstTime = false;
 
-                    // The following sets reload to true, if necessary
-                    ctxt.compile();
+                        // The following sets reload to true, if necessary
+                        ctxt.compile();
+                    } else if (compileException != null) {
+                        throw compileException;
+                    }
                 }
+            } else if (!options.getUsePrecompiled()
+                    && options.getDevelopment()) {
+                checkForUpdates();
             } else {
                 if (compileException != null) {
                     // Throw cached compilation exception
@@ -401,14 +436,16 @@ public class JspServletWrapper {
             /*
              * (3) Service request
              */
-            if (theServlet instanceof SingleThreadModel) {
+            requestCount++;
+            Servlet servlet = theServlet;
+            if (servlet instanceof SingleThreadModel) {
                // sync on the wrapper so that the freshness
                // of the page is determined right before servicing
                synchronized (this) {
-                   theServlet.service(request, response);
+                   servlet.service(request, response);
                 }
             } else {
-                theServlet.service(request, response);
+                servlet.service(request, response);
             }
 
         } catch (UnavailableException ex) {
@@ -441,6 +478,34 @@ public class JspServletWrapper {
         }
     }
 
+    /*
+     * Development mode freshness check.  Requests arriving within the
+     * modification test interval skip the check altogether.  Otherwise
+     * only one thread at a time checks the page (and recompiles it if
+     * needed); the others continue with the currently loaded servlet,
+     * which getServlet() replaces once the new class is available.
+     */
+    private void checkForUpdates() throws JasperException,
+            FileNotFoundException {
+
+        int interval = options.getModificationTestInterval();
+        if (interval > 0 && lastModificationTest + interval * 1000L
+                > System.currentTimeMillis()) {
+            return;
+        }
+        if (!compiling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                // The following sets reload to true, if necessary
+                ctxt.compile();
+            }
+        } finally {
+            compiling.set(false);
+        }
+    }
+
     public void destroy() {
         if (theServlet != null) {
             theServlet.destroy();
@@ -61,8 +61,8 @@ package org.apache.jasper.xmlparser;
 import java.io.*;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.security.AccessController;
@@ -129,8 +129,9 @@ public class ParserUtils {
 
     private static final String SCHEMA_LOCATION_ATTR = "schemaLocation";
 
-    private static HashMap<String, Schema> schemaCache =
-        new HashMap<String, Schema>();
+    // Read without locking, since TLDs may be parsed concurrently
+    private static ConcurrentHashMap<String, Schema> schemaCache =
+        new ConcurrentHashMap<String, Schema>();
 
     /**
      * List of the Public IDs that we cache, and their